@@ -0,0 +1,81 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of byte arrays for the reassembly of the video chunks. Buffers are handed out in power of two sizes so that a
+ * released buffer can serve any later chunk of the same size class, and at most {@link #getMaxPerClass()} free buffers
+ * are kept per class. The pool can be shared by the streams of several devices.
+ */
+public class BufferPool {
+
+	public static final int MIN_SIZE_BITS = 10; // 1 KB
+	public static final int MAX_SIZE_BITS = 20; // 1 MB
+	public static final int DEFAULT_MAX_PER_CLASS = 64;
+
+	private final List<ArrayDeque<byte[]>> free;
+	private final int maxPerClass;
+
+	// Statistics
+	private long allocated;
+	private long reused;
+
+	public BufferPool() {
+		this(DEFAULT_MAX_PER_CLASS);
+	}
+
+	public BufferPool(int maxPerClass) {
+		this.maxPerClass = maxPerClass;
+		int classes = MAX_SIZE_BITS - MIN_SIZE_BITS + 1;
+		free = new ArrayList<ArrayDeque<byte[]>>(classes);
+		for (int i = 0; i < classes; i++) {
+			free.add(new ArrayDeque<byte[]>());
+		}
+	}
+
+	/** Returns a buffer of at least the given size, larger sizes than the biggest class are not pooled. */
+	public synchronized byte[] acquire(int size) {
+		int sizeClass = sizeClass(size);
+		if (sizeClass >= free.size()) {
+			allocated++;
+			return new byte[size];
+		}
+		byte[] buffer = free.get(sizeClass).poll();
+		if (buffer != null) {
+			reused++;
+			return buffer;
+		}
+		allocated++;
+		return new byte[1 << (sizeClass + MIN_SIZE_BITS)];
+	}
+
+	/** Gives a buffer back to the pool, buffers that were not acquired from a pool are ignored. */
+	public synchronized void release(byte[] buffer) {
+		int length = buffer.length;
+		if (Integer.bitCount(length) != 1)
+			return;
+		int sizeClass = sizeClass(length);
+		if (sizeClass < free.size() && free.get(sizeClass).size() < maxPerClass)
+			free.get(sizeClass).push(buffer);
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= 1 << MIN_SIZE_BITS)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_BITS;
+	}
+
+	public int getMaxPerClass() {
+		return maxPerClass;
+	}
+
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	public synchronized long getReused() {
+		return reused;
+	}
+}
@@ -0,0 +1,102 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+/**
+ * Sends tuning commands to the control port of a Sensing device and waits for their acknowledgement. Commands are
+ * repeated until they are acknowledged or refused, which is safe because the device treats every command as
+ * idempotent. See ControlServer in the app for the commands.
+ */
+public class ControlClient {
+
+	public static final int DEFAULT_PORT = 9004;
+	public static final int DEFAULT_TIMEOUT = 500; // ms
+	public static final int DEFAULT_ATTEMPTS = 4;
+
+	private final DatagramSocket socket;
+	private final InetAddress address;
+	private final int port;
+	private long sequence = System.currentTimeMillis() % 100000;
+
+	public ControlClient(String host, int port) throws IOException {
+		this.address = InetAddress.getByName(host);
+		this.port = port;
+		socket = new DatagramSocket();
+		socket.setSoTimeout(DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Sends a command such as "SET fps 15" and returns the reply of the device, "ACK ..." or "NAK ...".
+	 *
+	 * @throws SocketTimeoutException
+	 *             if the device did not reply after {@link #DEFAULT_ATTEMPTS} attempts
+	 */
+	public synchronized String send(String command) throws IOException {
+		String seq = String.valueOf(++sequence);
+		byte[] data = (seq + " " + command).getBytes("US-ASCII");
+		byte[] buffer = new byte[1024];
+		DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+
+		for (int attempt = 0; attempt < DEFAULT_ATTEMPTS; attempt++) {
+			socket.send(new DatagramPacket(data, data.length, address, port));
+			long deadline = System.currentTimeMillis() + DEFAULT_TIMEOUT;
+			try {
+				// Skip the late replies to earlier attempts or commands
+				while (System.currentTimeMillis() < deadline) {
+					reply.setLength(buffer.length);
+					socket.receive(reply);
+					String text = new String(reply.getData(), 0, reply.getLength(), "US-ASCII");
+					String[] words = text.split(" ", 3);
+					if (words.length >= 2 && words[1].equals(seq))
+						return text;
+				}
+			} catch (SocketTimeoutException e) {
+				// try again
+			}
+		}
+		throw new SocketTimeoutException("No reply to " + command);
+	}
+
+	public void close() {
+		socket.close();
+	}
+
+	/**
+	 * Usage: ControlClient host[:port] command...
+	 *
+	 * For example: ControlClient 192.168.1.20 SET resolution 640x480
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ControlClient host[:port] command...");
+			System.exit(1);
+		}
+		String host = args[0];
+		int port = DEFAULT_PORT;
+		int separator = host.lastIndexOf(':');
+		if (separator > 0) {
+			port = Integer.parseInt(host.substring(separator + 1));
+			host = host.substring(0, separator);
+		}
+		StringBuilder command = new StringBuilder();
+		for (int i = 1; i < args.length; i++) {
+			if (i > 1)
+				command.append(' ');
+			command.append(args[i]);
+		}
+
+		ControlClient client = new ControlClient(host, port);
+		try {
+			String reply = client.send(command.toString());
+			System.out.println(reply);
+			if (!reply.startsWith("ACK"))
+				System.exit(2);
+		} finally {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.net.InetAddress;
+
+/**
+ * Telemetry and video received from one Sensing device, identified by its address. The counters are written by the
+ * receiving thread and can be read from any thread.
+ */
+public class DeviceStream {
+
+	private final InetAddress address;
+	private final PacketReassembler reassembler;
+	private final long firstSeen = System.nanoTime();
+	private volatile long lastSeen = firstSeen;
+
+	private volatile long telemetryPackets;
+	private volatile long invalidTelemetryPackets;
+	// Latest azimuth, pitch and roll in radians
+	private volatile float azimuth;
+	private volatile float pitch;
+	private volatile float roll;
+
+	DeviceStream(InetAddress address, final IngestServer.Listener listener, BufferPool pool) {
+		this.address = address;
+		this.reassembler = new PacketReassembler(new PacketReassembler.Listener() {
+			@Override
+			public void onFrameStarted(int frame) {
+				if (listener != null)
+					listener.onFrameStarted(DeviceStream.this, frame);
+			}
+
+			@Override
+			public void onChunk(byte[] data, int length, byte[] packet, int offset) {
+				if (listener != null)
+					listener.onVideoChunk(DeviceStream.this, data, length, packet, offset);
+			}
+		}, pool);
+	}
+
+	void onTelemetry(float azimuth, float pitch, float roll) {
+		telemetryPackets++;
+		this.azimuth = azimuth;
+		this.pitch = pitch;
+		this.roll = roll;
+	}
+
+	void onInvalidTelemetry() {
+		invalidTelemetryPackets++;
+	}
+
+	void touch(long now) {
+		lastSeen = now;
+	}
+
+	PacketReassembler getReassembler() {
+		return reassembler;
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	/** System.nanoTime() of the first and of the latest packet. */
+	public long getFirstSeen() {
+		return firstSeen;
+	}
+
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	public long getTelemetryPackets() {
+		return telemetryPackets;
+	}
+
+	public long getInvalidTelemetryPackets() {
+		return invalidTelemetryPackets;
+	}
+
+	public float getAzimuth() {
+		return azimuth;
+	}
+
+	public float getPitch() {
+		return pitch;
+	}
+
+	public float getRoll() {
+		return roll;
+	}
+
+	public long getVideoPackets() {
+		return reassembler.getPackets();
+	}
+
+	public long getVideoBytes() {
+		return reassembler.getBytes();
+	}
+
+	public long getChunksCompleted() {
+		return reassembler.getChunksCompleted();
+	}
+
+	public long getChunksDropped() {
+		return reassembler.getChunksDropped();
+	}
+
+	/**
+	 * Estimated fraction of the video packets lost: the packets missing from incomplete chunks, plus one packet per
+	 * frame that never arrived, since the size of those frames is unknown.
+	 */
+	public double getVideoLoss() {
+		long lost = reassembler.getPacketsLost() + reassembler.getFramesLost();
+		long expected = reassembler.getPackets() - reassembler.getDuplicatePackets() + lost;
+		return (expected == 0) ? 0.0 : lost / (double) expected;
+	}
+
+	@Override
+	public String toString() {
+		return address.getHostAddress();
+	}
+}
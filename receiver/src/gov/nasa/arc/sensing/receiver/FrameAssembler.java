@@ -0,0 +1,177 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import gov.nasa.arc.sensing.VideoPacket;
+
+/**
+ * Decodes the chunks of one video stream reassembled by a {@link PacketReassembler} and keeps the current frame. Full
+ * frames replace the current frame, tiles are drawn into it at their position. Packets must all come from the same
+ * sender.
+ */
+public class FrameAssembler {
+
+	public interface FrameListener {
+		/**
+		 * Called when a frame is complete. The image and the orientation are owned by the assembler and are updated in
+		 * place by the following frames, copy them to keep them.
+		 *
+		 * @param captureTime
+		 *            capture time on the device clock in nanoseconds, 0 if the frame is not stamped
+		 * @param orientation
+		 *            azimuth, pitch and roll of the device at the capture time in radians, null if the frame is not
+		 *            stamped
+		 */
+		void onFrame(BufferedImage image, int frame, boolean keyframe, long captureTime, float[] orientation);
+	}
+
+	private final FrameListener listener;
+	private final PacketReassembler reassembler;
+
+	private BufferedImage current;
+	private int currentFrame = -1;
+	private boolean hasPendingTiles;
+	private boolean pendingKeyframe;
+	private boolean stamped;
+	private long captureTime;
+	private final float[] orientation = new float[3];
+
+	// Statistics
+	private long framesCompleted;
+	private long tilesCompleted;
+	private long decodeErrors;
+
+	public FrameAssembler(FrameListener listener) {
+		this(listener, new BufferPool());
+	}
+
+	// The pool can be shared by the assemblers of several streams
+	public FrameAssembler(FrameListener listener, BufferPool pool) {
+		this.listener = listener;
+		this.reassembler = new PacketReassembler(chunkListener, pool);
+	}
+
+	public void onPacket(byte[] packet, int offset, int length) {
+		reassembler.onPacket(packet, offset, length);
+	}
+
+	private final PacketReassembler.Listener chunkListener = new PacketReassembler.Listener() {
+		// Publishes a tile frame whose last tile was lost
+		@Override
+		public void onFrameStarted(int frame) {
+			if (hasPendingTiles)
+				publish();
+			currentFrame = frame;
+			stamped = false;
+			captureTime = 0;
+		}
+
+		@Override
+		public void onChunk(byte[] data, int length, byte[] packet, int offset) {
+			BufferedImage image = decode(data, length);
+			if (image == null)
+				return;
+
+			if (VideoPacket.isStamped(packet, offset)) {
+				stamped = true;
+				captureTime = VideoPacket.getCaptureTime(packet, offset);
+				orientation[0] = VideoPacket.getAzimuth(packet, offset);
+				orientation[1] = VideoPacket.getPitch(packet, offset);
+				orientation[2] = VideoPacket.getRoll(packet, offset);
+			}
+
+			if (VideoPacket.isTile(packet, offset)) {
+				int flags = VideoPacket.getFlags(packet, offset);
+				drawTile(image, VideoPacket.getTileX(packet, offset), VideoPacket.getTileY(packet, offset), VideoPacket.getFrameWidth(packet, offset),
+						VideoPacket.getFrameHeight(packet, offset));
+				tilesCompleted++;
+				hasPendingTiles = true;
+				pendingKeyframe |= (flags & VideoPacket.FLAG_KEYFRAME) != 0;
+				if ((flags & VideoPacket.FLAG_END_OF_FRAME) != 0)
+					publish();
+			} else {
+				current = image;
+				pendingKeyframe = true;
+				hasPendingTiles = true;
+				publish();
+			}
+		}
+	};
+
+	private void drawTile(BufferedImage tile, int x, int y, int frameWidth, int frameHeight) {
+		if (current == null || current.getWidth() != frameWidth || current.getHeight() != frameHeight) {
+			current = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_INT_RGB);
+		}
+		Graphics2D g = current.createGraphics();
+		try {
+			g.drawImage(tile, x, y, null);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	private void publish() {
+		framesCompleted++;
+		boolean keyframe = pendingKeyframe;
+		hasPendingTiles = false;
+		pendingKeyframe = false;
+		if (listener != null && current != null)
+			listener.onFrame(current, currentFrame, keyframe, captureTime, stamped ? orientation : null);
+	}
+
+	private BufferedImage decode(byte[] data, int length) {
+		try {
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(data, 0, length));
+			if (image == null)
+				decodeErrors++;
+			return image;
+		} catch (IOException e) {
+			decodeErrors++;
+			return null;
+		}
+	}
+
+	/** Returns the current frame, or null before the first frame or tile was received. */
+	public BufferedImage getCurrentFrame() {
+		return current;
+	}
+
+	/** Returns true if the current frame carries its capture time and orientation. */
+	public boolean isStamped() {
+		return stamped;
+	}
+
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	/** Returns azimuth, pitch and roll at the capture time of the current frame, valid when {@link #isStamped()}. */
+	public float[] getOrientation() {
+		return orientation;
+	}
+
+	public long getFramesCompleted() {
+		return framesCompleted;
+	}
+
+	public long getTilesCompleted() {
+		return tilesCompleted;
+	}
+
+	public long getChunksDropped() {
+		return reassembler.getChunksDropped();
+	}
+
+	public PacketReassembler getReassembler() {
+		return reassembler;
+	}
+
+	public long getDecodeErrors() {
+		return decodeErrors;
+	}
+}
@@ -0,0 +1,166 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import gov.nasa.arc.sensing.VideoPacket;
+
+/**
+ * Simulates many Sensing devices streaming to an {@link IngestServer} over the loopback interface and reports the
+ * throughput, the loss and the CPU time of the receiving thread. Every device sends its telemetry at 10 Hz and full JPEG
+ * sized frames at the given rate, from its own loopback address (127.0.0.2 and up, which Linux routes to the loopback
+ * interface) so that the server sees distinct devices.
+ *
+ * Usage: IngestBenchmark [devices=32] [seconds=10] [fps=30] [frameBytes=12000] [senderThreads=4]
+ */
+public class IngestBenchmark {
+
+	private static final int TELEMETRY_RATE = 10;
+
+	private static class Device {
+		final DatagramChannel channel;
+		final ByteBuffer packet = ByteBuffer.allocate(VideoPacket.DATAGRAM_SIZE);
+		final ByteBuffer telemetry = ByteBuffer.allocate(IngestServer.TELEMETRY_PACKET_SIZE);
+		int frame;
+
+		Device(InetAddress address) throws Exception {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(address, 0));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int deviceCount = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		final int fps = (args.length > 2) ? Integer.parseInt(args[2]) : 30;
+		final int frameBytes = (args.length > 3) ? Integer.parseInt(args[3]) : 12000;
+		int senderThreads = (args.length > 4) ? Integer.parseInt(args[4]) : 4;
+
+		final AtomicLong chunks = new AtomicLong();
+		final IngestServer server = new IngestServer(0, 0, new IngestServer.Listener() {
+			@Override
+			public void onDeviceAdded(DeviceStream device) {
+			}
+
+			@Override
+			public void onTelemetry(DeviceStream device, float azimuth, float pitch, float roll) {
+			}
+
+			@Override
+			public void onFrameStarted(DeviceStream device, int frame) {
+			}
+
+			@Override
+			public void onVideoChunk(DeviceStream device, byte[] data, int length, byte[] packet, int offset) {
+				chunks.incrementAndGet();
+			}
+		});
+		final InetSocketAddress telemetryAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getTelemetryPort());
+		final InetSocketAddress videoAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getVideoPort());
+		Thread serverThread = new Thread(server, "IngestServer");
+		serverThread.start();
+
+		final Device[] devices = new Device[deviceCount];
+		for (int i = 0; i < deviceCount; i++) {
+			devices[i] = new Device(InetAddress.getByAddress(new byte[] { 127, 0, (byte) ((i + 2) >> 8), (byte) (i + 2) }));
+		}
+
+		// Random payload, the server does not decode the chunks
+		final byte[] payload = new byte[frameBytes];
+		new Random(1).nextBytes(payload);
+		final int maxPayload = VideoPacket.DATAGRAM_SIZE - VideoPacket.HEADER_SIZE;
+		final int packetsPerFrame = (frameBytes + maxPayload - 1) / maxPayload;
+
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong sendErrors = new AtomicLong();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		Thread[] senders = new Thread[senderThreads];
+		for (int t = 0; t < senderThreads; t++) {
+			final int first = t;
+			final int step = senderThreads;
+			senders[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long period = 1000000000L / fps;
+					long next = System.nanoTime();
+					int tick = 0;
+					while (next < end) {
+						for (int d = first; d < deviceCount; d += step) {
+							Device device = devices[d];
+							try {
+								if (tick % Math.max(1, fps / TELEMETRY_RATE) == 0) {
+									device.telemetry.clear();
+									device.telemetry.putFloat(0.1f).putFloat(0.2f).putFloat(0.3f).flip();
+									device.channel.send(device.telemetry, telemetryAddress);
+									sent.incrementAndGet();
+								}
+								for (int i = 0; i < packetsPerFrame; i++) {
+									int size = Math.min(maxPayload, frameBytes - i * maxPayload);
+									ByteBuffer packet = device.packet;
+									packet.clear();
+									packet.put((byte) device.frame).put((byte) packetsPerFrame).put((byte) i).putShort((short) size);
+									packet.put(payload, i * maxPayload, size).flip();
+									device.channel.send(packet, videoAddress);
+									sent.incrementAndGet();
+								}
+								device.frame = (device.frame + 1) & VideoPacket.FRAME_MASK;
+							} catch (Exception e) {
+								sendErrors.incrementAndGet();
+							}
+						}
+						tick++;
+						next += period;
+						LockSupport.parkNanos(next - System.nanoTime());
+					}
+				}
+			}, "Sender" + t);
+			senders[t].start();
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpuStart = threads.getThreadCpuTime(serverThread.getId());
+		long start = System.nanoTime();
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		// Let the server drain its receive buffers
+		Thread.sleep(200);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long cpu = threads.getThreadCpuTime(serverThread.getId()) - cpuStart;
+		server.close();
+		serverThread.join();
+
+		long received = server.getDatagrams();
+		long bytes = 0, minChunks = Long.MAX_VALUE, maxChunks = 0;
+		double maxLoss = 0;
+		for (DeviceStream device : server.getDevices()) {
+			bytes += device.getVideoBytes();
+			minChunks = Math.min(minChunks, device.getChunksCompleted());
+			maxChunks = Math.max(maxChunks, device.getChunksCompleted());
+			maxLoss = Math.max(maxLoss, device.getVideoLoss());
+		}
+		if (server.getDevices().isEmpty())
+			minChunks = 0;
+
+		System.out.println(String.format(Locale.ENGLISH, "%d devices, %d fps, %d byte frames (%d packets), %.1f s", deviceCount, fps, frameBytes, packetsPerFrame,
+				elapsed));
+		System.out.println(String.format(Locale.ENGLISH, "sent      %10d datagrams, %d send errors", sent.get(), sendErrors.get()));
+		System.out.println(String.format(Locale.ENGLISH, "received  %10d datagrams, %.0f/s, %.1f MB/s video, %d devices seen", received, received / elapsed,
+				bytes / elapsed / (1024 * 1024), server.getDevices().size()));
+		System.out.println(String.format(Locale.ENGLISH, "loss      %10.2f%% overall, %.2f%% worst device", 100.0 * (sent.get() - received) / Math.max(1, sent.get()),
+				100 * maxLoss));
+		System.out.println(String.format(Locale.ENGLISH, "frames    %10d, %.1f/s per device (min %d, max %d)", chunks.get(), chunks.get() / elapsed / deviceCount,
+				minChunks, maxChunks));
+		System.out.println(String.format(Locale.ENGLISH, "server    %10.1f%% of one core, %.2f us per datagram, %d selections", 100 * cpu / 1e9 / elapsed,
+				cpu / 1000.0 / Math.max(1, received), server.getSelections()));
+		System.out.println(String.format(Locale.ENGLISH, "pool      %10d buffers allocated, %d reused", server.getPool().getAllocated(), server.getPool().getReused()));
+	}
+}
@@ -0,0 +1,189 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gov.nasa.arc.sensing.VideoPacket;
+
+/**
+ * Checks that the packets written by the app read back field for field, the buffer reuse of {@link BufferPool} and the
+ * demultiplexing of {@link IngestServer}, exits with status 1 if a check fails.
+ *
+ * The demultiplexing check streams from several loopback addresses (127.0.0.2 and up) at once, interleaving their
+ * packets, and verifies that every device gets back exactly its own frames, byte for byte, and its own telemetry.
+ *
+ * Usage: IngestCheck [devices=4] [frames=50]
+ */
+public class IngestCheck {
+
+	private static final int FRAME_BYTES = 3000; // three packets per frame
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		int deviceCount = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+
+		checkPacket();
+		checkPool();
+		checkDemultiplexing(deviceCount, frames);
+
+		System.out.println(failures == 0 ? "PASS" : failures + " checks FAILED");
+		if (failures != 0)
+			System.exit(1);
+	}
+
+	static void checkPacket() {
+		byte[] packet = new byte[VideoPacket.DATAGRAM_SIZE];
+		VideoPacket.writeHeader(packet, 130, 3, 2, 1000);
+		check("full frame header", !VideoPacket.isTile(packet, 0) && VideoPacket.getHeaderSize(packet, 0) == VideoPacket.HEADER_SIZE
+				&& VideoPacket.getFrame(packet, 0) == (130 & VideoPacket.FRAME_MASK) && VideoPacket.getPackets(packet, 0) == 3
+				&& VideoPacket.getIndex(packet, 0) == 2 && VideoPacket.getSize(packet, 0) == 1000);
+
+		int flags = VideoPacket.FLAG_KEYFRAME | VideoPacket.FLAG_STAMPED;
+		VideoPacket.writeTileHeader(packet, 5, 1, 0, 700, flags, 80, 60, 40, 30, 640, 480);
+		VideoPacket.writeStamp(packet, 0x0123456789abcdefL, 1.5f, -0.25f, 3.0f);
+		check("tile header", VideoPacket.isTile(packet, 0) && VideoPacket.getFrame(packet, 0) == 5 && VideoPacket.getFlags(packet, 0) == flags
+				&& VideoPacket.getTileX(packet, 0) == 80 && VideoPacket.getTileY(packet, 0) == 60 && VideoPacket.getTileWidth(packet, 0) == 40
+				&& VideoPacket.getTileHeight(packet, 0) == 30 && VideoPacket.getFrameWidth(packet, 0) == 640 && VideoPacket.getFrameHeight(packet, 0) == 480);
+		check("tile stamp", VideoPacket.isStamped(packet, 0) && VideoPacket.getHeaderSize(packet, 0) == VideoPacket.getTileHeaderSize(flags)
+				&& VideoPacket.getCaptureTime(packet, 0) == 0x0123456789abcdefL && VideoPacket.getAzimuth(packet, 0) == 1.5f
+				&& VideoPacket.getPitch(packet, 0) == -0.25f && VideoPacket.getRoll(packet, 0) == 3.0f);
+		check("tile packet valid", VideoPacket.isValid(packet, 0, VideoPacket.getTileHeaderSize(flags) + 700)
+				&& !VideoPacket.isValid(packet, 0, VideoPacket.getTileHeaderSize(flags) + 699));
+	}
+
+	static void checkPool() {
+		BufferPool pool = new BufferPool(2);
+
+		byte[] small = pool.acquire(100);
+		check("smallest class is 1 KB", small.length == 1 << BufferPool.MIN_SIZE_BITS);
+		pool.release(small);
+		check("released buffer is reused", pool.acquire(1000) == small && pool.getReused() == 1);
+		check("next class is 2 KB", pool.acquire(1025).length == 2048);
+
+		byte[] a = pool.acquire(1024), b = pool.acquire(1024), c = pool.acquire(1024);
+		pool.release(a);
+		pool.release(b);
+		pool.release(c);
+		long reused = pool.getReused();
+		pool.acquire(1024);
+		pool.acquire(1024);
+		check("at most maxPerClass buffers kept", pool.getReused() == reused + 2 && pool.acquire(1024) != c);
+
+		byte[] huge = pool.acquire((1 << BufferPool.MAX_SIZE_BITS) + 1);
+		check("oversized buffer has the exact size", huge.length == (1 << BufferPool.MAX_SIZE_BITS) + 1);
+		pool.release(huge);
+		pool.release(new byte[1500]);
+		reused = pool.getReused();
+		pool.acquire(1500);
+		check("foreign buffers are not pooled", pool.getReused() == reused);
+	}
+
+	static void checkDemultiplexing(int deviceCount, int frames) throws Exception {
+		// Copies of the chunks per device, the server reuses its buffers after each call
+		final Map<InetAddress, AtomicInteger> mismatches = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+		final Map<InetAddress, AtomicInteger> chunks = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+		IngestServer server = new IngestServer(0, 0, new IngestServer.Listener() {
+			@Override
+			public void onDeviceAdded(DeviceStream device) {
+				mismatches.put(device.getAddress(), new AtomicInteger());
+				chunks.put(device.getAddress(), new AtomicInteger());
+			}
+
+			@Override
+			public void onTelemetry(DeviceStream device, float azimuth, float pitch, float roll) {
+			}
+
+			@Override
+			public void onFrameStarted(DeviceStream device, int frame) {
+			}
+
+			@Override
+			public void onVideoChunk(DeviceStream device, byte[] data, int length, byte[] packet, int offset) {
+				int id = device.getAddress().getAddress()[3];
+				int frame = VideoPacket.getFrame(packet, offset);
+				if (!Arrays.equals(Arrays.copyOf(data, length), payload(id, frame)))
+					mismatches.get(device.getAddress()).incrementAndGet();
+				chunks.get(device.getAddress()).incrementAndGet();
+			}
+		});
+		InetSocketAddress telemetryAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getTelemetryPort());
+		InetSocketAddress videoAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getVideoPort());
+		Thread serverThread = new Thread(server, "IngestServer");
+		serverThread.start();
+
+		Map<InetAddress, DatagramChannel> channels = new HashMap<InetAddress, DatagramChannel>();
+		InetAddress[] addresses = new InetAddress[deviceCount];
+		for (int d = 0; d < deviceCount; d++) {
+			addresses[d] = InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (d + 2) });
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(addresses[d], 0));
+			channels.put(addresses[d], channel);
+		}
+
+		int maxPayload = VideoPacket.DATAGRAM_SIZE - VideoPacket.HEADER_SIZE;
+		int packets = (FRAME_BYTES + maxPayload - 1) / maxPayload;
+		ByteBuffer datagram = ByteBuffer.allocate(VideoPacket.DATAGRAM_SIZE);
+		for (int f = 0; f < frames; f++) {
+			int frame = f & VideoPacket.FRAME_MASK;
+			// Packet i of every device before packet i + 1 of any, so the streams interleave
+			for (int i = 0; i < packets; i++) {
+				for (int d = 0; d < deviceCount; d++) {
+					byte[] payload = payload(d + 2, frame);
+					int size = Math.min(maxPayload, payload.length - i * maxPayload);
+					datagram.clear();
+					datagram.put((byte) frame).put((byte) packets).put((byte) i).putShort((short) size);
+					datagram.put(payload, i * maxPayload, size).flip();
+					channels.get(addresses[d]).send(datagram, videoAddress);
+				}
+			}
+			for (int d = 0; d < deviceCount; d++) {
+				datagram.clear();
+				datagram.putFloat(d).putFloat(f).putFloat(-d).flip();
+				channels.get(addresses[d]).send(datagram, telemetryAddress);
+			}
+			// Stay well below the receive buffer, the check is about routing and not about loss
+			Thread.sleep(2);
+		}
+		Thread.sleep(200);
+		server.close();
+		serverThread.join();
+		for (DatagramChannel channel : channels.values()) {
+			channel.close();
+		}
+
+		check(deviceCount + " devices seen", server.getDevices().size() == deviceCount);
+		for (DeviceStream device : server.getDevices()) {
+			InetAddress address = device.getAddress();
+			int d = address.getAddress()[3] - 2;
+			check(address.getHostAddress() + " got its " + frames + " frames", chunks.get(address).get() == frames && device.getChunksCompleted() == frames);
+			check(address.getHostAddress() + " frames are its own", mismatches.get(address).get() == 0);
+			check(address.getHostAddress() + " telemetry is its own", device.getTelemetryPackets() == frames && device.getAzimuth() == d
+					&& device.getPitch() == frames - 1 && device.getRoll() == -d);
+		}
+		check("chunk buffers are pooled", server.getPool().getReused() > 0 && server.getPool().getAllocated() <= 2L * deviceCount);
+	}
+
+	// Content of a frame, different for every device and frame
+	private static byte[] payload(int device, int frame) {
+		byte[] payload = new byte[FRAME_BYTES];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) (device * 31 + frame * 7 + i);
+		}
+		return payload;
+	}
+
+	private static void check(String name, boolean passed) {
+		System.out.println((passed ? "ok   " : "FAIL ") + name);
+		if (!passed)
+			failures++;
+	}
+}
@@ -0,0 +1,227 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import gov.nasa.arc.sensing.VideoPacket;
+
+/**
+ * Receives the telemetry and video of many Sensing devices on one thread. Both ports are served by a single NIO
+ * selector, the datagrams are demultiplexed by source address into a {@link DeviceStream} per device, and the video is
+ * reassembled with buffers from one shared {@link BufferPool}. The chunks are not decoded: the listener gets the raw
+ * JPEG data and should hand it to other threads for anything slow.
+ *
+ * A device is identified by its IP address because the app sends telemetry and video from different sockets.
+ */
+public class IngestServer implements Runnable {
+
+	public interface Listener {
+		void onDeviceAdded(DeviceStream device);
+
+		/** Called for every telemetry packet, with the azimuth, pitch and roll in radians. */
+		void onTelemetry(DeviceStream device, float azimuth, float pitch, float roll);
+
+		void onFrameStarted(DeviceStream device, int frame);
+
+		/**
+		 * Called when a full frame or a tile is reassembled. The data is reused after the call.
+		 *
+		 * @param packet
+		 *            the datagram that completed the chunk, read its header with {@link VideoPacket}
+		 */
+		void onVideoChunk(DeviceStream device, byte[] data, int length, byte[] packet, int offset);
+	}
+
+	public static final int DEFAULT_TELEMETRY_PORT = 9001;
+	public static final int DEFAULT_VIDEO_PORT = 9002;
+	public static final int TELEMETRY_PACKET_SIZE = 12;
+	// Large enough to absorb the bursts of dozens of devices between two selections
+	public static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final Integer TELEMETRY = Integer.valueOf(0);
+	private static final Integer VIDEO = Integer.valueOf(1);
+
+	private final Listener listener;
+	private final Selector selector;
+	private final DatagramChannel telemetryChannel;
+	private final DatagramChannel videoChannel;
+	private final BufferPool pool = new BufferPool();
+	private final ByteBuffer buffer = ByteBuffer.allocate(VideoPacket.DATAGRAM_SIZE + 64);
+
+	// Looked up by the receiving thread only, published for readers in another map
+	private final Map<InetAddress, DeviceStream> devices = new HashMap<InetAddress, DeviceStream>();
+	private final Map<InetAddress, DeviceStream> publishedDevices = new ConcurrentHashMap<InetAddress, DeviceStream>();
+	private volatile boolean running = true;
+
+	private volatile long selections;
+	private volatile long datagrams;
+
+	public IngestServer(int telemetryPort, int videoPort, Listener listener) throws IOException {
+		this.listener = listener;
+		selector = Selector.open();
+		telemetryChannel = open(telemetryPort, TELEMETRY);
+		videoChannel = open(videoPort, VIDEO);
+	}
+
+	private DatagramChannel open(int port, Integer kind) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, kind);
+		return channel;
+	}
+
+	@Override
+	public void run() {
+		byte[] data = buffer.array();
+		try {
+			while (running) {
+				selector.select();
+				selections++;
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid() || !key.isReadable())
+						continue;
+					DatagramChannel channel = (DatagramChannel) key.channel();
+					boolean telemetry = key.attachment() == TELEMETRY;
+
+					// Drain the channel before selecting again
+					SocketAddress source;
+					while ((source = receive(channel)) != null) {
+						datagrams++;
+						DeviceStream device = getDevice(((InetSocketAddress) source).getAddress());
+						if (telemetry)
+							onTelemetry(device, data, buffer.position());
+						else
+							device.getReassembler().onPacket(data, 0, buffer.position());
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running)
+				System.err.println("Error: " + e.getMessage());
+		} finally {
+			closeChannels();
+		}
+	}
+
+	private SocketAddress receive(DatagramChannel channel) throws IOException {
+		buffer.clear();
+		return channel.receive(buffer);
+	}
+
+	private DeviceStream getDevice(InetAddress address) {
+		DeviceStream device = devices.get(address);
+		if (device == null) {
+			device = new DeviceStream(address, listener, pool);
+			devices.put(address, device);
+			publishedDevices.put(address, device);
+			if (listener != null)
+				listener.onDeviceAdded(device);
+		}
+		device.touch(System.nanoTime());
+		return device;
+	}
+
+	private void onTelemetry(DeviceStream device, byte[] data, int length) {
+		if (length != TELEMETRY_PACKET_SIZE) {
+			device.onInvalidTelemetry();
+			return;
+		}
+		float azimuth = Float.intBitsToFloat(getInt(data, 0));
+		float pitch = Float.intBitsToFloat(getInt(data, 4));
+		float roll = Float.intBitsToFloat(getInt(data, 8));
+		device.onTelemetry(azimuth, pitch, roll);
+		if (listener != null)
+			listener.onTelemetry(device, azimuth, pitch, roll);
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void closeChannels() {
+		try {
+			telemetryChannel.close();
+			videoChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+		}
+	}
+
+	public int getTelemetryPort() throws IOException {
+		return ((InetSocketAddress) telemetryChannel.getLocalAddress()).getPort();
+	}
+
+	public int getVideoPort() throws IOException {
+		return ((InetSocketAddress) videoChannel.getLocalAddress()).getPort();
+	}
+
+	public Collection<DeviceStream> getDevices() {
+		return publishedDevices.values();
+	}
+
+	public BufferPool getPool() {
+		return pool;
+	}
+
+	public long getSelections() {
+		return selections;
+	}
+
+	public long getDatagrams() {
+		return datagrams;
+	}
+
+	/**
+	 * Prints the telemetry rate, video rate and loss of every device once per second.
+	 *
+	 * Usage: IngestServer [telemetryPort] [videoPort]
+	 */
+	public static void main(String[] args) throws Exception {
+		int telemetryPort = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_TELEMETRY_PORT;
+		int videoPort = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_VIDEO_PORT;
+		IngestServer server = new IngestServer(telemetryPort, videoPort, null);
+		new Thread(server, "IngestServer").start();
+
+		Map<DeviceStream, long[]> previous = new HashMap<DeviceStream, long[]>();
+		while (true) {
+			Thread.sleep(1000);
+			List<DeviceStream> devices = new ArrayList<DeviceStream>(server.getDevices());
+			for (DeviceStream device : devices) {
+				long[] counts = { device.getTelemetryPackets(), device.getChunksCompleted(), device.getVideoBytes() };
+				long[] last = previous.get(device);
+				if (last == null)
+					last = new long[counts.length];
+				System.out.println(String.format(Locale.ENGLISH, "%-15s %5d telemetry/s %5d chunks/s %8.1f kB/s loss %5.2f%%", device, counts[0] - last[0],
+						counts[1] - last[1], (counts[2] - last[2]) / 1024.0, 100 * device.getVideoLoss()));
+				previous.put(device, counts);
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package gov.nasa.arc.sensing.receiver;
+
+import gov.nasa.arc.sensing.VideoPacket;
+
+/**
+ * Reassembles the fragmented JPEG datagrams of one video stream into complete chunks, full frames or tiles, without
+ * decoding them. Chunk buffers come from a {@link BufferPool} and the chunk bookkeeping is reused, so a steady stream
+ * does not allocate. Packets must all come from the same sender.
+ *
+ * The frame numbers only advance when the device sends a frame, so a gap in the numbers is counted as lost frames. A
+ * packet of a frame older than the current one arrived out of order and is dropped.
+ */
+public class PacketReassembler {
+
+	public interface Listener {
+		/** Called when the first packet of a new frame arrives, after the partial chunks of older frames were dropped. */
+		void onFrameStarted(int frame);
+
+		/**
+		 * Called when a chunk is complete. The data belongs to the reassembler and is reused after the call.
+		 *
+		 * @param packet
+		 *            the datagram that completed the chunk, its header describes the chunk
+		 */
+		void onChunk(byte[] data, int length, byte[] packet, int offset);
+	}
+
+	// Frames further ahead than this are taken for late packets of an older frame
+	private static final int MAX_FRAME_GAP = (VideoPacket.FRAME_MASK + 1) / 2;
+	// After this many late packets in a row the sender is assumed to have restarted its frame numbers
+	private static final int MAX_LATE_PACKETS = 32;
+	private static final int MAX_PACKETS = 256;
+
+	// One JPEG being reassembled
+	private static class Chunk {
+		long key;
+		int frame;
+		int packets;
+		int maxPayload;
+		byte[] buffer;
+		final boolean[] received = new boolean[MAX_PACKETS];
+		int remaining;
+		int size;
+	}
+
+	private final Listener listener;
+	private final BufferPool pool;
+
+	// Chunks of the current frame, there are few so a linear search beats a map
+	private Chunk[] active = new Chunk[16];
+	private int activeCount;
+	private Chunk[] spare = new Chunk[16];
+	private int spareCount;
+
+	private int currentFrame = -1;
+	private int latePackets;
+
+	// Statistics, written by the receiving thread only
+	private volatile long packets;
+	private volatile long bytes;
+	private volatile long invalidPackets;
+	private volatile long duplicatePackets;
+	private volatile long outOfOrderPackets;
+	private volatile long chunksCompleted;
+	private volatile long chunksDropped;
+	private volatile long packetsLost;
+	private volatile long framesLost;
+
+	public PacketReassembler(Listener listener, BufferPool pool) {
+		this.listener = listener;
+		this.pool = pool;
+	}
+
+	public void onPacket(byte[] packet, int offset, int length) {
+		packets++;
+		bytes += length;
+		if (!VideoPacket.isValid(packet, offset, length)) {
+			invalidPackets++;
+			return;
+		}
+
+		int frame = VideoPacket.getFrame(packet, offset);
+		if (frame != currentFrame && !startFrame(frame)) {
+			outOfOrderPackets++;
+			return;
+		}
+
+		boolean tile = VideoPacket.isTile(packet, offset);
+		int count = VideoPacket.getPackets(packet, offset);
+		int index = VideoPacket.getIndex(packet, offset);
+		int size = VideoPacket.getSize(packet, offset);
+		int headerSize = VideoPacket.getHeaderSize(packet, offset);
+		int maxPayload = VideoPacket.DATAGRAM_SIZE - headerSize;
+
+		long key = tile ? ((long) VideoPacket.getTileX(packet, offset) << 16) | VideoPacket.getTileY(packet, offset) | (1L << 40) : 0;
+		key |= (long) frame << 32;
+
+		Chunk chunk = find(key);
+		if (chunk != null && (chunk.packets != count || chunk.maxPayload != maxPayload)) {
+			// Same place in the same frame but a different layout, the sender restarted
+			remove(chunk);
+			drop(chunk);
+			chunk = null;
+		}
+		if (chunk == null)
+			chunk = add(key, frame, count, maxPayload);
+
+		if (chunk.received[index]) {
+			duplicatePackets++;
+			return;
+		}
+		if (index * maxPayload + size > count * maxPayload) {
+			invalidPackets++;
+			return;
+		}
+
+		System.arraycopy(packet, offset + headerSize, chunk.buffer, index * maxPayload, size);
+		chunk.received[index] = true;
+		chunk.size += size;
+		if (--chunk.remaining > 0)
+			return;
+
+		remove(chunk);
+		chunksCompleted++;
+		try {
+			if (listener != null)
+				listener.onChunk(chunk.buffer, chunk.size, packet, offset);
+		} finally {
+			recycle(chunk);
+		}
+	}
+
+	// Moves to a new frame, returns false if the packet belongs to an older frame
+	private boolean startFrame(int frame) {
+		if (currentFrame >= 0) {
+			int gap = (frame - currentFrame) & VideoPacket.FRAME_MASK;
+			if (gap > MAX_FRAME_GAP && ++latePackets <= MAX_LATE_PACKETS)
+				return false;
+			if (gap <= MAX_FRAME_GAP)
+				framesLost += gap - 1;
+		}
+		latePackets = 0;
+
+		for (int i = activeCount - 1; i >= 0; i--) {
+			Chunk chunk = active[i];
+			if (chunk.frame != frame) {
+				remove(chunk);
+				drop(chunk);
+			}
+		}
+		currentFrame = frame;
+		if (listener != null)
+			listener.onFrameStarted(frame);
+		return true;
+	}
+
+	private Chunk find(long key) {
+		for (int i = 0; i < activeCount; i++) {
+			if (active[i].key == key)
+				return active[i];
+		}
+		return null;
+	}
+
+	private Chunk add(long key, int frame, int count, int maxPayload) {
+		Chunk chunk = (spareCount > 0) ? spare[--spareCount] : new Chunk();
+		chunk.key = key;
+		chunk.frame = frame;
+		chunk.packets = count;
+		chunk.maxPayload = maxPayload;
+		chunk.buffer = pool.acquire(count * maxPayload);
+		chunk.remaining = count;
+		chunk.size = 0;
+		for (int i = 0; i < count; i++) {
+			chunk.received[i] = false;
+		}
+		if (activeCount == active.length)
+			active = grow(active);
+		active[activeCount++] = chunk;
+		return chunk;
+	}
+
+	private void remove(Chunk chunk) {
+		for (int i = 0; i < activeCount; i++) {
+			if (active[i] == chunk) {
+				active[i] = active[--activeCount];
+				active[activeCount] = null;
+				return;
+			}
+		}
+	}
+
+	// Counts an incomplete chunk as dropped and its missing packets as lost
+	private void drop(Chunk chunk) {
+		chunksDropped++;
+		packetsLost += chunk.remaining;
+		recycle(chunk);
+	}
+
+	private void recycle(Chunk chunk) {
+		pool.release(chunk.buffer);
+		chunk.buffer = null;
+		if (spareCount == spare.length)
+			spare = grow(spare);
+		spare[spareCount++] = chunk;
+	}
+
+	private static Chunk[] grow(Chunk[] chunks) {
+		Chunk[] grown = new Chunk[chunks.length * 2];
+		System.arraycopy(chunks, 0, grown, 0, chunks.length);
+		return grown;
+	}
+
+	public long getPackets() {
+		return packets;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getInvalidPackets() {
+		return invalidPackets;
+	}
+
+	public long getDuplicatePackets() {
+		return duplicatePackets;
+	}
+
+	public long getOutOfOrderPackets() {
+		return outOfOrderPackets;
+	}
+
+	public long getChunksCompleted() {
+		return chunksCompleted;
+	}
+
+	public long getChunksDropped() {
+		return chunksDropped;
+	}
+
+	/** Packets missing from the chunks that were dropped incomplete. */
+	public long getPacketsLost() {
+		return packetsLost;
+	}
+
+	/** Frames of which no packet arrived at all. */
+	public long getFramesLost() {
+		return framesLost;
+	}
+}
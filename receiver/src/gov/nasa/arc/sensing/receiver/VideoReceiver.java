@@ -0,0 +1,79 @@
+package gov.nasa.arc.sensing.receiver;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+import gov.nasa.arc.sensing.VideoPacket;
+
+/**
+ * Receives the video stream of one Sensing device on a UDP port and hands complete frames to a listener.
+ */
+public class VideoReceiver implements Runnable {
+
+	public static final int DEFAULT_PORT = 9002;
+
+	private final DatagramSocket socket;
+	private final FrameAssembler assembler;
+	private volatile boolean running = true;
+
+	public VideoReceiver(int port, FrameAssembler.FrameListener listener) throws SocketException {
+		socket = new DatagramSocket(port);
+		assembler = new FrameAssembler(listener);
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[VideoPacket.DATAGRAM_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (running) {
+			try {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				assembler.onPacket(packet.getData(), packet.getOffset(), packet.getLength());
+			} catch (IOException e) {
+				if (running)
+					System.err.println("Error: " + e.getMessage());
+			}
+		}
+	}
+
+	public void close() {
+		running = false;
+		socket.close();
+	}
+
+	public FrameAssembler getAssembler() {
+		return assembler;
+	}
+
+	/** Prints the frame rate of the stream received on the given port, 9002 by default. */
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		final long[] frames = new long[2];
+		VideoReceiver receiver = new VideoReceiver(port, new FrameAssembler.FrameListener() {
+			@Override
+			public void onFrame(BufferedImage image, int frame, boolean keyframe, long captureTime, float[] orientation) {
+				synchronized (frames) {
+					frames[0]++;
+					if (keyframe)
+						frames[1]++;
+				}
+			}
+		});
+		new Thread(receiver, "VideoReceiver").start();
+
+		while (true) {
+			Thread.sleep(1000);
+			synchronized (frames) {
+				FrameAssembler assembler = receiver.getAssembler();
+				System.out.println(frames[0] + " fps, " + frames[1] + " keyframes, " + assembler.getTilesCompleted() + " tiles, " + assembler.getChunksDropped()
+						+ " dropped");
+				frames[0] = 0;
+				frames[1] = 0;
+			}
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
@@ -13,6 +15,9 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -21,17 +26,57 @@ import android.view.SurfaceView;
 public class CameraPreview extends SurfaceView implements PreviewCallback, SurfaceHolder.Callback {
 
 	private final static String TAG = "Camera Preview";
-	private final static int WIDTH = 320;
-	private final static int HEIGHT = 240;
+	// Frames are dropped while this many previous frames are still being sent
+	private final static int MAX_VIDEO_IN_FLIGHT = 2;
+	// Only one frame out of LOW_POWER_FRAME_DIVIDER is sent while the fusion is in its low-power profile
+	private final static int LOW_POWER_FRAME_DIVIDER = 6;
+	// How long the UI thread waits for the camera to stop drawing when the surface goes away
+	private final static long STOP_TIMEOUT = 500; // ms
+
+	// Encoding modes
+	public static final int MODE_FULL = 0; // a full JPEG per frame
+	public static final int MODE_TILES = 1; // only the tiles that changed, with a periodic full refresh
 
 	private SurfaceHolder mHolder;
 	private Camera mCamera;
 	private int mnCameraOrientation;
-
-	private boolean isSendingData;
-	private int port = 9002;
-	private String host;
-	private DatagramSocket socket = null;
+	// The camera is opened and driven on its own thread, which also receives the preview frames, so that the UI
+	// thread never waits for the camera service. The thread is shared by the whole process, so a preview opens the
+	// camera only after the previous one has released it.
+	private static HandlerThread cameraThread;
+	// Null while there is no surface
+	private volatile Handler cameraHandler;
+	// Only used on the camera thread: the preview that holds the camera, and the one whose surface was created before
+	// the holder released it. A new activity can create its surface before the old one destroys its own.
+	private static CameraPreview cameraOwner;
+	private static CameraPreview cameraWaiter;
+
+	// Size of the preview frames, the closest the camera supports to the configured resolution
+	private volatile int previewWidth = RuntimeConfig.DEFAULT_VIDEO_WIDTH;
+	private volatile int previewHeight = RuntimeConfig.DEFAULT_VIDEO_HEIGHT;
+
+	private volatile boolean isSendingData;
+	private volatile DatagramSocket socket = null;
+	// Replaces the destination of the RuntimeConfig when set
+	private volatile InetAddress destination;
+	private volatile int destinationPort;
+
+	private SensorFusion sensorFusion;
+	private final FrameChangeDetector changeDetector = new FrameChangeDetector();
+	private boolean isSkippingStaticFrames = true;
+
+	private int encodingMode = MODE_FULL;
+	private final TileEncoder tileEncoder = new TileEncoder();
+	private int refreshInterval = FrameChangeDetector.DEFAULT_KEYFRAME_INTERVAL;
+	private int framesSinceRefresh;
+
+	// Off by default: a stamped full frame goes out as a tile packet, which older receivers do not read
+	private boolean isStampingFrames = false;
+	// The old camera API has no frame timestamps. A frame reaches the callback after its exposure and readout, about
+	// one frame period on most devices, so the capture time is the callback time minus this latency.
+	public static final long DEFAULT_CAPTURE_LATENCY = 33000000L; // ns
+	private volatile long captureLatency = DEFAULT_CAPTURE_LATENCY;
+	private final float[] captureOrientation = new float[3];
 
 	public CameraPreview(Context context) {
 		super(context);
@@ -54,37 +99,151 @@ public class CameraPreview extends SurfaceView implements PreviewCallback, Surfa
 		}
 	}
 
-	public void setUDPSettings(DatagramSocket socket, String host, int port) {
+	// The destination, quality and resolution come from the RuntimeConfig
+	public void setSocket(DatagramSocket socket) {
 		this.socket = socket;
-		this.host = host;
-		this.port = port;
+	}
+
+	// Sends the video somewhere else than the configured host, null to use the configuration again
+	public void setDestination(InetAddress destination, int port) {
+		this.destinationPort = port;
+		this.destination = destination;
+	}
+
+	public int getPreviewWidth() {
+		return previewWidth;
+	}
+
+	public int getPreviewHeight() {
+		return previewHeight;
 	}
 
 	public void setSendingData(boolean isSendingData) {
 		this.isSendingData = isSendingData;
+		changeDetector.reset();
+		tileEncoder.reset();
+	}
+
+	// The fused angular rate is used together with the image difference to detect static frames
+	public void setSensorFusion(SensorFusion sensorFusion) {
+		this.sensorFusion = sensorFusion;
+	}
+
+	public void setSkippingStaticFrames(boolean isSkippingStaticFrames) {
+		this.isSkippingStaticFrames = isSkippingStaticFrames;
+		changeDetector.reset();
+	}
+
+	public void setEncodingMode(int encodingMode) {
+		this.encodingMode = encodingMode;
+		tileEncoder.reset();
+		changeDetector.reset();
+	}
+
+	public int getEncodingMode() {
+		return encodingMode;
+	}
+
+	// Number of frames between two full refreshes in tile mode
+	public void setRefreshInterval(int refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	// Stamps every frame with the fused orientation at its capture time, needs the sensor fusion
+	public void setStampingFrames(boolean isStampingFrames) {
+		this.isStampingFrames = isStampingFrames;
+	}
+
+	// Time between the capture of a frame and its preview callback, in nanoseconds
+	public void setCaptureLatency(long captureLatency) {
+		this.captureLatency = captureLatency;
 	}
 
 	public void surfaceCreated(SurfaceHolder holder) {
+		RuntimeConfig.addListener(configListener);
+		cameraHandler = new Handler(getCameraLooper());
+		cameraHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (cameraOwner != null && cameraOwner != CameraPreview.this) {
+					cameraWaiter = CameraPreview.this;
+					return;
+				}
+				openCamera();
+			}
+		});
+	}
+
+	// Runs on the camera thread
+	private void openCamera() {
 		mCamera = getCameraInstance();
+		if (mCamera == null)
+			return;
+		cameraOwner = this;
+		StartupMetrics.mark(StartupMetrics.CAMERA_OPEN);
 		try {
-			if (mCamera != null) {
-				mCamera.setPreviewDisplay(holder);
-				mCamera.startPreview();
-			}
+			mCamera.setPreviewDisplay(mHolder);
+			mCamera.startPreview();
 		} catch (IOException e) {
 			mCamera.release();
 			mCamera = null;
+			cameraOwner = null;
 			Log.d(TAG, "Error setting camera preview: " + e.getMessage());
 		}
 	}
 
 	public void surfaceDestroyed(SurfaceHolder holder) {
-		if (mCamera != null) {
-			mCamera.setPreviewCallback(null);
-			mCamera.stopPreview();
-			mCamera.release();
-			mCamera = null;
+		RuntimeConfig.removeListener(configListener);
+		Handler handler = cameraHandler;
+		cameraHandler = null;
+		if (handler == null)
+			return;
+
+		// The camera must stop drawing before the surface is gone, the release itself is not waited for
+		final CountDownLatch stopped = new CountDownLatch(1);
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (cameraWaiter == CameraPreview.this)
+					cameraWaiter = null;
+				if (mCamera == null) {
+					stopped.countDown();
+					return;
+				}
+				try {
+					mCamera.setPreviewCallback(null);
+					mCamera.stopPreview();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error: ", e);
+				}
+				stopped.countDown();
+				mCamera.release();
+				mCamera = null;
+				cameraOwner = null;
+
+				// A preview that could not open the camera gets it now
+				CameraPreview waiter = cameraWaiter;
+				cameraWaiter = null;
+				if (waiter != null && waiter.cameraHandler != null) {
+					waiter.openCamera();
+					waiter.restartPreviewTask.run();
+				}
+			}
+		});
+		try {
+			if (!stopped.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+				Log.e(TAG, "Camera still drawing after " + STOP_TIMEOUT + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static synchronized Looper getCameraLooper() {
+		if (cameraThread == null) {
+			cameraThread = new HandlerThread("Camera");
+			cameraThread.start();
 		}
+		return cameraThread.getLooper();
 	}
 
 	public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
@@ -92,37 +251,99 @@ public class CameraPreview extends SurfaceView implements PreviewCallback, Surfa
 			// preview surface does not exist
 			return;
 		}
+		Handler handler = cameraHandler;
+		if (handler != null)
+			handler.post(restartPreviewTask);
+	}
 
-		// stop preview before making changes
-		try {
-			mCamera.stopPreview();
-		} catch (Exception e) {
-			// ignore: tried to stop a non-existent preview
+	// Runs on the camera thread, after the camera was opened
+	private final Runnable restartPreviewTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mCamera == null)
+				return;
+
+			// stop preview before making changes
+			try {
+				mCamera.stopPreview();
+			} catch (Exception e) {
+				// ignore: tried to stop a non-existent preview
+			}
+
+			// set preview size and make any resize, rotate or
+			// reformatting changes, then start preview with new settings
+			try {
+				setCameraParameters(RuntimeConfig.get());
+				mCamera.setDisplayOrientation(mnCameraOrientation);
+				mCamera.setPreviewDisplay(mHolder);
+				mCamera.setPreviewCallback(CameraPreview.this);
+				mCamera.startPreview();
+
+			} catch (Exception e) {
+				Log.d(TAG, "Error starting camera preview: " + e.getMessage());
+			}
 		}
+	};
 
-		// set preview size and make any resize, rotate or
-		// reformatting changes here
+	// Sets the supported preview size and frame rate closest to the configuration
+	private void setCameraParameters(RuntimeConfig config) {
 		Camera.Parameters parameters = mCamera.getParameters();
-		List<Camera.Size> sizes = parameters.getSupportedPreviewSizes();  
-		Camera.Size cs = sizes.get(0);  
+		List<Camera.Size> sizes = parameters.getSupportedPreviewSizes();
+		Camera.Size cs = sizes.get(0);
+		for (Camera.Size size : sizes) {
+			if (Math.abs(size.width * size.height - config.videoWidth * config.videoHeight) < Math.abs(cs.width * cs.height - config.videoWidth * config.videoHeight))
+				cs = size;
+		}
 		parameters.setPreviewSize(cs.width, cs.height);
-		parameters.setPreviewFrameRate(30);
+		List<Integer> frameRates = parameters.getSupportedPreviewFrameRates();
+		if (frameRates != null && !frameRates.isEmpty()) {
+			int frameRate = frameRates.get(0);
+			for (int rate : frameRates) {
+				if (Math.abs(rate - config.frameRate) < Math.abs(frameRate - config.frameRate))
+					frameRate = rate;
+			}
+			parameters.setPreviewFrameRate(frameRate);
+		}
 		parameters.setSceneMode(Camera.Parameters.SCENE_MODE_SPORTS);
 		parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
 		parameters.setColorEffect(Camera.Parameters.EFFECT_NONE);
 		mCamera.setParameters(parameters);
+		previewWidth = cs.width;
+		previewHeight = cs.height;
+	}
 
-		// start preview with new settings
-		try {
-			mCamera.setDisplayOrientation(mnCameraOrientation);
-			mCamera.setPreviewDisplay(mHolder);
-			mCamera.setPreviewCallback(this);
-			mCamera.startPreview();
-
-		} catch (Exception e) {
-			Log.d(TAG, "Error starting camera preview: " + e.getMessage());
+	// A new resolution or frame rate is applied to the open camera, the preview only restarts if the size changes
+	private final RuntimeConfig.Listener configListener = new RuntimeConfig.Listener() {
+		@Override
+		public void onConfigChanged(RuntimeConfig previous, final RuntimeConfig config) {
+			Handler handler = cameraHandler;
+			if (previous.hasSameVideoFormat(config) || handler == null)
+				return;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mCamera == null)
+						return;
+					int width = previewWidth, height = previewHeight;
+					try {
+						setCameraParameters(config);
+					} catch (Exception e) {
+						Log.e(TAG, "Error: ", e);
+						return;
+					}
+					if (width != previewWidth || height != previewHeight) {
+						try {
+							mCamera.stopPreview();
+							mCamera.setPreviewCallback(CameraPreview.this);
+							mCamera.startPreview();
+						} catch (Exception e) {
+							Log.e(TAG, "Error: ", e);
+						}
+					}
+				}
+			});
 		}
-	}
+	};
 
 	@Override
 	protected void onLayout(boolean changed, int l, int t, int r, int b) {
@@ -144,68 +365,227 @@ public class CameraPreview extends SurfaceView implements PreviewCallback, Surfa
 		return camera; // returns null if camera is unavailable
 	}
 
-	private static int HEADER_SIZE = 5;
-	private static int DATAGRAM_MAX_SIZE = 1450 - HEADER_SIZE;
 	private int frame_nb = 0;
+	private int lowPowerFrames = 0;
 
 	// Preview callback used whenever new frame is available...send image via UDP !!!
 	@Override
 	public void onPreviewFrame(byte[] data, Camera camera) {
+		if (camera != null)
+			StartupMetrics.mark(StartupMetrics.FIRST_FRAME);
 
 		if (!isSendingData || socket == null)
 			return;
 
-		final byte[] buffer = convertYuvToJPEG(data, WIDTH, HEIGHT);
+		// One configuration per frame, a frame of the previous size can still arrive after a resolution change
+		final RuntimeConfig config = RuntimeConfig.get();
+		if (!config.isStreamingVideo)
+			return;
+		final int width = previewWidth, height = previewHeight;
+		if (data.length < width * height * 3 / 2)
+			return;
 
-		Runnable updateDbRunnable = new Runnable() {
-			@Override
-			public void run() {
-				int size_p = 0, i;
-				Log.e(TAG, "SIZE: " + buffer.length);
+		final long captureTime = System.nanoTime() - captureLatency;
 
-				int nb_packets = (int) Math.ceil(buffer.length / (float) DATAGRAM_MAX_SIZE);
-				int size = DATAGRAM_MAX_SIZE;
+		// Reduced frame rate while the device is stationary
+		if (sensorFusion != null && sensorFusion.isLowPower()) {
+			if (++lowPowerFrames % LOW_POWER_FRAME_DIVIDER != 0) {
+				PipelineStats.increment(PipelineStats.VIDEO_DECIMATED);
+				return;
+			}
+		} else {
+			lowPowerFrames = 0;
+		}
 
-				/* Loop through slices */
-				for (i = 0; i < nb_packets; i++) {
-					if (i > 0 && i == nb_packets - 1)
-						size = buffer.length - i * DATAGRAM_MAX_SIZE;
+		// Drop the frame before looking at it if the previous ones are still being sent
+		if (!enterVideoQueue())
+			return;
 
-					/* Set additional header */
-					byte[] data2 = new byte[HEADER_SIZE + size];
-					data2[0] = (byte) frame_nb;
-					data2[1] = (byte) nb_packets;
-					data2[2] = (byte) i;
-					data2[3] = (byte) (size >> 8);
-					data2[4] = (byte) size;
+		if (encodingMode == MODE_TILES) {
+			sendTiles(data, width, height, config, captureTime);
+			return;
+		}
 
-					/* Copy current slice to byte array */
-					System.arraycopy(buffer, i * DATAGRAM_MAX_SIZE, data2, HEADER_SIZE, size);
+		if (isSkippingStaticFrames) {
+			float angularRate = (sensorFusion != null) ? sensorFusion.getAngularRate() : 0.0f;
+			if (!changeDetector.shouldSend(data, width, height, angularRate)) {
+				PipelineStats.increment(PipelineStats.VIDEO_SKIPPED);
+				PipelineStats.leave(PipelineStats.VIDEO_QUEUE);
+				return;
+			}
+			if (changeDetector.isForced())
+				PipelineStats.increment(PipelineStats.VIDEO_FORCED);
+		}
 
-					try {
-						size_p = data2.length;
-						DatagramPacket packet = new DatagramPacket(data2, size_p, InetAddress.getByName(host), port);
-						socket.setBroadcast(true);
-						socket.send(packet);
-					} catch (Exception e) {
-						Log.e(TAG, "Error: ", e);
+		long encodeStart = PipelineStats.now();
+		final byte[] buffer = convertYuvToJPEG(data, width, height, config.jpegQuality);
+		PipelineStats.recordSince(PipelineStats.JPEG_ENCODE, encodeStart);
+		final int frame = nextFrameNumber();
+		final float[] stamp = getCaptureOrientation(captureTime);
+
+		Runnable updateDbRunnable = new Runnable() {
+			@Override
+			public void run() {
+				long sendStart = PipelineStats.now();
+				try {
+					if (stamp != null) {
+						// Only tile packets have room for the stamp, send the frame as one tile
+						int flags = VideoPacket.FLAG_KEYFRAME | VideoPacket.FLAG_END_OF_FRAME | VideoPacket.FLAG_STAMPED;
+						sendSlices(config, buffer, frame, true, flags, 0, 0, width, height, width, height, captureTime, stamp);
+					} else {
+						sendSlices(config, buffer, frame, false, 0, 0, 0, width, height, width, height, captureTime, null);
 					}
+					PipelineStats.recordSince(PipelineStats.VIDEO_SEND, sendStart);
+					PipelineStats.increment(PipelineStats.VIDEO_FRAMES);
+				} finally {
+					PipelineStats.leave(PipelineStats.VIDEO_QUEUE);
 				}
-				frame_nb++;
+			}
+		};
+		Thread videoThread = new Thread(updateDbRunnable);
+		videoThread.start();
+	}
 
-				if (frame_nb == 128)
-					frame_nb = 0;
+	// Encodes and sends only the tiles that changed since they were last sent
+	private void sendTiles(byte[] data, final int width, final int height, final RuntimeConfig config, final long captureTime) {
+		boolean keyframe = ++framesSinceRefresh >= refreshInterval;
+		final int count = tileEncoder.findChangedTiles(data, width, height, keyframe);
+		if (tileEncoder.isKeyframe())
+			framesSinceRefresh = 0;
+		if (keyframe)
+			PipelineStats.increment(PipelineStats.VIDEO_FORCED);
+		if (count == 0) {
+			PipelineStats.increment(PipelineStats.VIDEO_SKIPPED);
+			PipelineStats.leave(PipelineStats.VIDEO_QUEUE);
+			return;
+		}
+
+		long encodeStart = PipelineStats.now();
+		YuvImage image = tileEncoder.wrap(data);
+		final byte[][] tiles = new byte[count][];
+		final int[] indices = new int[count];
+		final int[] rects = new int[count * 4];
+		for (int i = 0; i < count; i++) {
+			int tile = tileEncoder.getChangedTile(i);
+			indices[i] = tile;
+			tiles[i] = tileEncoder.encode(image, tile, config.jpegQuality);
+			rects[4 * i] = tileEncoder.getTileX(tile);
+			rects[4 * i + 1] = tileEncoder.getTileY(tile);
+			rects[4 * i + 2] = tileEncoder.getTileWidth(tile);
+			rects[4 * i + 3] = tileEncoder.getTileHeight(tile);
+		}
+		PipelineStats.recordSince(PipelineStats.JPEG_ENCODE, encodeStart);
 
+		final int frame = nextFrameNumber();
+		final float[] stamp = getCaptureOrientation(captureTime);
+		int keyframeFlag = tileEncoder.isKeyframe() ? VideoPacket.FLAG_KEYFRAME : 0;
+		final int flags = (stamp != null) ? keyframeFlag | VideoPacket.FLAG_STAMPED : keyframeFlag;
+
+		Runnable tileRunnable = new Runnable() {
+			@Override
+			public void run() {
+				long sendStart = PipelineStats.now();
+				try {
+					for (int i = 0; i < count; i++) {
+						int tileFlags = (i == count - 1) ? flags | VideoPacket.FLAG_END_OF_FRAME : flags;
+						// A tile lost here is sent again with the next frame rather than at the next refresh
+						if (!sendSlices(config, tiles[i], frame, true, tileFlags, rects[4 * i], rects[4 * i + 1], rects[4 * i + 2], rects[4 * i + 3], width, height,
+								captureTime, stamp))
+							tileEncoder.invalidate(indices[i]);
+					}
+					PipelineStats.recordSince(PipelineStats.VIDEO_SEND, sendStart);
+					PipelineStats.increment(PipelineStats.VIDEO_FRAMES);
+				} finally {
+					PipelineStats.leave(PipelineStats.VIDEO_QUEUE);
+				}
 			}
 		};
-		Thread videoThread = new Thread(updateDbRunnable);
+		Thread videoThread = new Thread(tileRunnable);
 		videoThread.start();
 	}
 
-	public byte[] convertYuvToJPEG(byte[] data, int width, int height) {
+	// Returns the fused orientation interpolated at the capture time, or null if frames are not stamped
+	private float[] getCaptureOrientation(long captureTime) {
+		if (!isStampingFrames || sensorFusion == null || !sensorFusion.getOrientationHistory().interpolate(captureTime, captureOrientation))
+			return null;
+		return captureOrientation.clone();
+	}
+
+	// Counts the frame in the video queue, returns false and counts a drop if the queue is full
+	private boolean enterVideoQueue() {
+		if (PipelineStats.enter(PipelineStats.VIDEO_QUEUE) <= MAX_VIDEO_IN_FLIGHT)
+			return true;
+		PipelineStats.leave(PipelineStats.VIDEO_QUEUE);
+		PipelineStats.increment(PipelineStats.VIDEO_DROPS);
+		return false;
+	}
+
+	private int nextFrameNumber() {
+		int frame = frame_nb;
+		frame_nb = (frame_nb + 1) & VideoPacket.FRAME_MASK;
+		return frame;
+	}
+
+	// Splits a JPEG buffer in datagrams, each one prefixed with a full frame or a tile header, returns false if a
+	// datagram could not be sent
+	private boolean sendSlices(RuntimeConfig config, byte[] buffer, int frame, boolean tile, int flags, int x, int y, int w, int h, int frameWidth, int frameHeight,
+			long captureTime, float[] stamp) {
+		DatagramSocket socket = this.socket;
+		if (socket == null)
+			return false;
+		int headerSize = tile ? VideoPacket.getTileHeaderSize(flags) : VideoPacket.HEADER_SIZE;
+		int maxSize = VideoPacket.DATAGRAM_SIZE - headerSize;
+		int size_p = 0, i;
+
+		int nb_packets = (int) Math.ceil(buffer.length / (float) maxSize);
+		int size = maxSize;
+		if (nb_packets > VideoPacket.MAX_PACKETS) {
+			PipelineStats.increment(PipelineStats.SEND_ERRORS);
+			Log.e(TAG, "Error: frame of " + buffer.length + " bytes needs more than " + VideoPacket.MAX_PACKETS + " packets");
+			return false;
+		}
+		boolean sent = true;
+
+		/* Loop through slices */
+		for (i = 0; i < nb_packets; i++) {
+			if (i > 0 && i == nb_packets - 1)
+				size = buffer.length - i * maxSize;
+			else if (nb_packets == 1)
+				size = buffer.length;
+
+			/* Set additional header */
+			byte[] data2 = new byte[headerSize + size];
+			if (tile) {
+				VideoPacket.writeTileHeader(data2, frame, nb_packets, i, size, flags, x, y, w, h, frameWidth, frameHeight);
+				if (stamp != null)
+					VideoPacket.writeStamp(data2, captureTime, stamp[0], stamp[1], stamp[2]);
+			} else
+				VideoPacket.writeHeader(data2, frame, nb_packets, i, size);
+
+			/* Copy current slice to byte array */
+			System.arraycopy(buffer, i * maxSize, data2, headerSize, size);
+
+			try {
+				size_p = data2.length;
+				InetAddress destination = this.destination;
+				DatagramPacket packet = (destination != null) ? new DatagramPacket(data2, size_p, destination, destinationPort)
+						: new DatagramPacket(data2, size_p, config.getHostAddress(), config.cameraPort);
+				socket.setBroadcast(true);
+				socket.send(packet);
+				PipelineStats.increment(PipelineStats.VIDEO_PACKETS);
+			} catch (Exception e) {
+				PipelineStats.increment(PipelineStats.SEND_ERRORS);
+				Log.e(TAG, "Error: ", e);
+				sent = false;
+			}
+		}
+		return sent;
+	}
+
+	public byte[] convertYuvToJPEG(byte[] data, int width, int height, int quality) {
 		YuvImage img = new YuvImage(data, ImageFormat.NV21, width, height, null);
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		img.compressToJpeg(new Rect(0, 0, width, height), 70, bos);
+		img.compressToJpeg(new Rect(0, 0, width, height), quality, bos);
 		return bos.toByteArray();
 	}
 
@@ -219,48 +599,20 @@ public class CameraPreview extends SurfaceView implements PreviewCallback, Surfa
 	 * @param height
 	 *            pixels height
 	 * @return a RGB8888 pixels int array. Where each int is a pixels ARGB.
+	 * @see YuvConverter#convert(byte[], int, int, int[], boolean)
 	 */
 	public static int[] convertYUV420_NV21toRGB8888(byte[] data, int width, int height) {
-		int size = width * height;
-		int offset = size;
-		int[] pixels = new int[size];
-		int u, v, y1, y2, y3, y4;
-
-		// i percorre dos Y and the final pixels
-		// k percorre dos pixles U e V
-		for (int i = 0, k = 0; i < size; i += 2, k += 2) {
-			y1 = data[i] & 0xff;
-			y2 = data[i + 1] & 0xff;
-			y3 = data[width + i] & 0xff;
-			y4 = data[width + i + 1] & 0xff;
-
-			u = data[offset + k] & 0xff;
-			v = data[offset + k + 1] & 0xff;
-			u = u - 128;
-			v = v - 128;
-
-			pixels[i] = convertYUVtoRGB(y1, u, v);
-			pixels[i + 1] = convertYUVtoRGB(y2, u, v);
-			pixels[width + i] = convertYUVtoRGB(y3, u, v);
-			pixels[width + i + 1] = convertYUVtoRGB(y4, u, v);
-
-			if (i != 0 && (i + 2) % width == 0)
-				i += width;
-		}
-
+		int[] pixels = new int[width * height];
+		YuvConverter.convert(data, width, height, pixels, false);
 		return pixels;
 	}
 
-	private static int convertYUVtoRGB(int y, int u, int v) {
-		int r, g, b;
-
-		r = y + (int) 1.402f * v;
-		g = y - (int) (0.344f * u + 0.714f * v);
-		b = y + (int) 1.772f * u;
-		r = r > 255 ? 255 : r < 0 ? 0 : r;
-		g = g > 255 ? 255 : g < 0 ? 0 : g;
-		b = b > 255 ? 255 : b < 0 ? 0 : b;
-		return 0xff000000 | (b << 16) | (g << 8) | r;
+	/**
+	 * Converts YUV420 NV21 to RGB8888 into a caller supplied buffer of at least width * height ints.
+	 */
+	public static void convertYUV420_NV21toRGB8888(byte[] data, int width, int height, int[] pixels) {
+		// The products cost less than the table loads on a JIT, see YuvConverterBenchmark
+		YuvConverter.convert(data, width, height, pixels, false);
 	}
 
 }
@@ -0,0 +1,273 @@
+package gov.nasa.arc.sensing;
+
+import java.util.Arrays;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+/**
+ * The complementary filter computed in Java: the gyroscope is integrated between two ticks and blended with the
+ * accelerometer/magnetometer orientation, with the weight of the gyroscope set by
+ * {@link RuntimeConfig#filterCoefficient}. Needs a gyroscope.
+ */
+public class ComplementaryFilterBackend implements FusionBackend {
+
+	public static final float EPSILON = 0.000000001f;
+	private static final float NS2S = 1.0f / 1000000000.0f;
+	private static final int[] SENSOR_TYPES = { Sensor.TYPE_GYROSCOPE };
+
+	private final SensorFusion fusion;
+
+	// angular speeds from gyro
+	private float[] gyro = new float[3];
+	// rotation matrix from gyro data
+	private final float[] gyroMatrix = new float[9];
+	// orientation angles from gyro matrix
+	private float[] gyroOrientation = new float[3];
+	private long timestamp;
+	private boolean initState = true;
+
+	// Scratch arrays of the gyroscope integration and the matrix rebuild, the sensor and the fusion threads share them
+	// under the lock of this backend
+	private final float[] normValues = new float[3];
+	private final float[] deltaVector = new float[4];
+	private final float[] deltaMatrix = new float[9];
+	private final float[] initMatrix = new float[9];
+	private final float[] product = new float[9];
+	private final float[] xM = new float[9];
+	private final float[] yM = new float[9];
+	private final float[] zM = new float[9];
+	private final float[] xyM = new float[9];
+
+	public ComplementaryFilterBackend(SensorFusion fusion) {
+		this.fusion = fusion;
+		reset();
+	}
+
+	@Override
+	public String getName() {
+		return "complementary";
+	}
+
+	@Override
+	public int[] getSensorTypes() {
+		return SENSOR_TYPES;
+	}
+
+	@Override
+	public synchronized void reset() {
+		gyroOrientation[0] = 0.0f;
+		gyroOrientation[1] = 0.0f;
+		gyroOrientation[2] = 0.0f;
+
+		// Initialize gyroMatrix with identity matrix
+		gyroMatrix[0] = 1.0f;
+		gyroMatrix[1] = 0.0f;
+		gyroMatrix[2] = 0.0f;
+		gyroMatrix[3] = 0.0f;
+		gyroMatrix[4] = 1.0f;
+		gyroMatrix[5] = 0.0f;
+		gyroMatrix[6] = 0.0f;
+		gyroMatrix[7] = 0.0f;
+		gyroMatrix[8] = 1.0f;
+
+		timestamp = 0;
+		initState = true;
+	}
+
+	// The gyroscope is integrated in the device coordinate system, as before the remapping was cached
+	@Override
+	public void setCoordinateRemap(int axisX, int axisY) {
+	}
+
+	@Override
+	public void onSensorSample(int type, long eventTimestamp, float[] values) {
+		if (type == Sensor.TYPE_GYROSCOPE)
+			gyroFunction(eventTimestamp, values);
+	}
+
+	// This function is borrowed from the Android reference at
+	// http://developer.android.com/reference/android/hardware/SensorEvent.html#values
+	// It calculates a rotation vector from the gyroscope angular speed values.
+	private void getRotationVectorFromGyro(float[] gyroValues, float[] deltaRotationVector, float timeFactor) {
+		// Calculate the angular speed of the sample
+		float omegaMagnitude = (float)Math.sqrt(gyroValues[0] * gyroValues[0] + gyroValues[1] * gyroValues[1] + gyroValues[2] * gyroValues[2]);
+
+		// Normalize the rotation vector if it's big enough to get the axis
+		if (omegaMagnitude > EPSILON) {
+			normValues[0] = gyroValues[0] / omegaMagnitude;
+			normValues[1] = gyroValues[1] / omegaMagnitude;
+			normValues[2] = gyroValues[2] / omegaMagnitude;
+		} else {
+			normValues[0] = 0.0f;
+			normValues[1] = 0.0f;
+			normValues[2] = 0.0f;
+		}
+
+		// Integrate around this axis with the angular speed by the timestep
+		// in order to get a delta rotation from this sample over the timestep
+		// We will convert this axis-angle representation of the delta rotation
+		// into a quaternion before turning it into the rotation matrix.
+		float thetaOverTwo = omegaMagnitude * timeFactor;
+		float sinThetaOverTwo = (float)Math.sin(thetaOverTwo);
+		float cosThetaOverTwo = (float)Math.cos(thetaOverTwo);
+		deltaRotationVector[0] = sinThetaOverTwo * normValues[0];
+		deltaRotationVector[1] = sinThetaOverTwo * normValues[1];
+		deltaRotationVector[2] = sinThetaOverTwo * normValues[2];
+		deltaRotationVector[3] = cosThetaOverTwo;
+	}
+
+	// This function performs the integration of the gyroscope data.
+	// It writes the gyroscope based orientation into gyroOrientation.
+	public synchronized void gyroFunction(long eventTimestamp, float[] values) {
+		// Initialization of the gyroscope based rotation matrix, from a real accelerometer/magnetometer orientation
+		if (initState) {
+			fusion.calculateOrientation();
+			if (!fusion.isAccMagValid())
+				return;
+			getRotationMatrixFromOrientation(fusion.getAccMagOrientation(), initMatrix);
+			matrixMultiplication(gyroMatrix, initMatrix, product);
+			System.arraycopy(product, 0, gyroMatrix, 0, 9);
+			initState = false;
+		}
+
+		// Copy the new gyro values into the gyro array
+		// Convert the raw gyro data into a rotation vector, none for the first sample
+		if (timestamp != 0) {
+			final float dT = (eventTimestamp - timestamp) * NS2S;
+			System.arraycopy(values, 0, gyro, 0, 3);
+			getRotationVectorFromGyro(gyro, deltaVector, dT / 2.0f);
+		} else {
+			Arrays.fill(deltaVector, 0.0f);
+		}
+
+		// Measurement done, save current time for next interval
+		timestamp = eventTimestamp;
+
+		// Convert rotation vector into rotation matrix
+		SensorManager.getRotationMatrixFromVector(deltaMatrix, deltaVector);
+
+		// Apply the new rotation interval on the gyroscope based rotation matrix
+		matrixMultiplication(gyroMatrix, deltaMatrix, product);
+		System.arraycopy(product, 0, gyroMatrix, 0, 9);
+
+		// Get the gyroscope based orientation from the rotation matrix
+		SensorManager.getOrientation(gyroMatrix, gyroOrientation);
+	}
+
+	// Writes the rotation matrix of the orientation o into result
+	private void getRotationMatrixFromOrientation(float[] o, float[] result) {
+		float sinX = (float)Math.sin(o[1]);
+		float cosX = (float)Math.cos(o[1]);
+		float sinY = (float)Math.sin(o[2]);
+		float cosY = (float)Math.cos(o[2]);
+		float sinZ = (float)Math.sin(o[0]);
+		float cosZ = (float)Math.cos(o[0]);
+
+		// Rotation about x-axis (pitch)
+		xM[0] = 1.0f;
+		xM[1] = 0.0f;
+		xM[2] = 0.0f;
+		xM[3] = 0.0f;
+		xM[4] = cosX;
+		xM[5] = sinX;
+		xM[6] = 0.0f;
+		xM[7] = -sinX;
+		xM[8] = cosX;
+
+		// Rotation about y-axis (roll)
+		yM[0] = cosY;
+		yM[1] = 0.0f;
+		yM[2] = sinY;
+		yM[3] = 0.0f;
+		yM[4] = 1.0f;
+		yM[5] = 0.0f;
+		yM[6] = -sinY;
+		yM[7] = 0.0f;
+		yM[8] = cosY;
+
+		// Rotation about z-axis (azimuth)
+		zM[0] = cosZ;
+		zM[1] = sinZ;
+		zM[2] = 0.0f;
+		zM[3] = -sinZ;
+		zM[4] = cosZ;
+		zM[5] = 0.0f;
+		zM[6] = 0.0f;
+		zM[7] = 0.0f;
+		zM[8] = 1.0f;
+
+		// Rotation order is y, x, z (roll, pitch, azimuth)
+		matrixMultiplication(xM, yM, xyM);
+		matrixMultiplication(zM, xyM, result);
+	}
+
+	// Writes A * B into result, which must be neither A nor B
+	private static void matrixMultiplication(float[] A, float[] B, float[] result) {
+		result[0] = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
+		result[1] = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
+		result[2] = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
+
+		result[3] = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
+		result[4] = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
+		result[5] = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
+
+		result[6] = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
+		result[7] = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
+		result[8] = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
+	}
+
+	// Runs one step of the complementary filter
+	@Override
+	public synchronized boolean fuse(float[] accMagOrientation, float[] fusedOrientation) {
+		if (initState)
+			return false;
+
+		float filterCoefficient = RuntimeConfig.get().filterCoefficient;
+		float oneMinusCoeff = 1.0f - filterCoefficient;
+
+		/*
+		 * Fix for 179 <--> -179 transition problem: Check whether one of
+		 * the two orientation angles (gyro or accMag) is negative while the
+		 * other one is positive. If so, add 360 (2 * math.PI) to the
+		 * negative value, perform the sensor fusion, and remove the 360
+		 * from the result if it is greater than 180. This stabilizes the
+		 * output in positive-to-negative-transition cases.
+		 */
+
+		// Azimuth
+		if (gyroOrientation[0] < -0.5 * Math.PI && accMagOrientation[0] > 0.0) {
+			fusedOrientation[0] = (float) (filterCoefficient * (gyroOrientation[0] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[0]);
+			fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
+		} else if (accMagOrientation[0] < -0.5 * Math.PI && gyroOrientation[0] > 0.0) {
+			fusedOrientation[0] = (float) (filterCoefficient * gyroOrientation[0] + oneMinusCoeff * (accMagOrientation[0] + 2.0 * Math.PI));
+			fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
+		} else
+			fusedOrientation[0] = filterCoefficient * gyroOrientation[0] + oneMinusCoeff * accMagOrientation[0];
+
+		// Pitch
+		if (gyroOrientation[1] < -0.5 * Math.PI && accMagOrientation[1] > 0.0) {
+			fusedOrientation[1] = (float) (filterCoefficient * (gyroOrientation[1] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[1]);
+			fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
+		} else if (accMagOrientation[1] < -0.5 * Math.PI && gyroOrientation[1] > 0.0) {
+			fusedOrientation[1] = (float) (filterCoefficient * gyroOrientation[1] + oneMinusCoeff * (accMagOrientation[1] + 2.0 * Math.PI));
+			fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
+		} else
+			fusedOrientation[1] = filterCoefficient * gyroOrientation[1] + oneMinusCoeff * accMagOrientation[1];
+
+		// Roll
+		if (gyroOrientation[2] < -0.5 * Math.PI && accMagOrientation[2] > 0.0) {
+			fusedOrientation[2] = (float) (filterCoefficient * (gyroOrientation[2] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[2]);
+			fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
+		} else if (accMagOrientation[2] < -0.5 * Math.PI && gyroOrientation[2] > 0.0) {
+			fusedOrientation[2] = (float) (filterCoefficient * gyroOrientation[2] + oneMinusCoeff * (accMagOrientation[2] + 2.0 * Math.PI));
+			fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
+		} else
+			fusedOrientation[2] = filterCoefficient * gyroOrientation[2] + oneMinusCoeff * accMagOrientation[2];
+
+		// Overwrite gyro matrix and orientation with fused orientation to compensate gyro drift
+		getRotationMatrixFromOrientation(fusedOrientation, gyroMatrix);
+		System.arraycopy(fusedOrientation, 0, gyroOrientation, 0, 3);
+		return true;
+	}
+}
@@ -0,0 +1,359 @@
+package gov.nasa.arc.sensing;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Receives tuning commands from the ground station on a UDP port and acknowledges every one of them. A command is one
+ * line of ASCII text in a datagram, starting with a sequence number chosen by the sender:
+ *
+ * <pre>
+ * 12 SET telemetry_period 200     ms between two orientation packets
+ * 13 SET telemetry_rate 5         the same in Hz
+ * 14 SET fusion_period 50         ms between two filter steps
+ * 15 SET fusion_mode fused        fused, rotation_vector or accmag
+ * 16 SET filter 0.95              complementary filter coefficient, 0 to 1
+ * 17 SET resolution 640x480
+ * 18 SET fps 15
+ * 19 SET quality 50               JPEG quality, 1 to 100
+ * 20 SET low_power off            on or off
+ * 21 START video                  telemetry, video, stats, motion or recording
+ * 22 STOP telemetry
+ * 23 GET                          current settings and startup times
+ * 24 PING
+ * </pre>
+ *
+ * The reply goes back to the sender: "ACK 12" with an optional detail, or "NAK 12 reason". Every command is idempotent,
+ * so a sender that got no reply can repeat it. Settings are written to the preferences so that they survive a restart
+ * and show up in {@link SettingsActivity}, the fusion mode is kept in a preference of its own.
+ *
+ * Only the ground station may send commands: the stream destination must be set to its unicast address. While the
+ * destination is the broadcast address (the default) or a multicast group there is no ground station to check against,
+ * and every command is dropped without a reply.
+ *
+ * Commands that change the service run on the main thread. If one has not finished within
+ * {@link #MAIN_THREAD_TIMEOUT}, it is cancelled and refused if it has not started yet, otherwise the reply is
+ * "ACK seq pending" and GET shows the outcome once it is done.
+ */
+public class ControlServer implements Runnable {
+	private static final String TAG = "ControlServer";
+
+	public static final int MAX_COMMAND_SIZE = 512;
+	// How long a command that must run on the main thread may take before it is refused or reported pending
+	public static final long MAIN_THREAD_TIMEOUT = 1000; // ms
+	private static final String PENDING = "pending";
+	// States of a task posted to the main thread
+	private static final int QUEUED = 0;
+	private static final int STARTED = 1;
+	private static final int CANCELLED = 2;
+
+	private final SensingService service;
+	private final SharedPreferences prefs;
+	private final int port;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private DatagramSocket socket;
+	private Thread thread;
+	private volatile boolean running;
+
+	public ControlServer(SensingService service, SharedPreferences prefs, int port) {
+		this.service = service;
+		this.prefs = prefs;
+		this.port = port;
+	}
+
+	public void start() {
+		if (!hasGroundStation(RuntimeConfig.get()))
+			Log.w(TAG, "Streams are broadcast, commands on port " + port + " are dropped until a ground station address is set");
+		running = true;
+		thread = new Thread(this, "Control");
+		thread.start();
+	}
+
+	public void close() {
+		running = false;
+		DatagramSocket socket = this.socket;
+		if (socket != null)
+			socket.close();
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public void run() {
+		try {
+			socket = new DatagramSocket(port);
+		} catch (SocketException exception) {
+			Log.e(TAG, "Error: ", exception);
+			return;
+		}
+		if (!running) {
+			socket.close();
+			return;
+		}
+
+		byte[] buffer = new byte[MAX_COMMAND_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (running) {
+			try {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				if (!isAllowed(packet.getAddress()))
+					continue;
+
+				String reply = execute(new String(packet.getData(), 0, packet.getLength(), "US-ASCII").trim());
+				byte[] data = reply.getBytes("US-ASCII");
+				socket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+			} catch (Exception exception) {
+				if (running)
+					Log.e(TAG, "Error: ", exception);
+			}
+		}
+		socket.close();
+	}
+
+	// Only the ground station may send commands, see the class comment
+	private boolean isAllowed(InetAddress source) {
+		RuntimeConfig config = RuntimeConfig.get();
+		try {
+			return hasGroundStation(config) && config.getHostAddress().equals(source);
+		} catch (Exception exception) {
+			return false;
+		}
+	}
+
+	// False while the streams go to the broadcast address or a multicast group
+	private static boolean hasGroundStation(RuntimeConfig config) {
+		try {
+			return !config.host.equals(RuntimeConfig.DEFAULT_HOST) && !config.getHostAddress().isMulticastAddress();
+		} catch (Exception exception) {
+			return false;
+		}
+	}
+
+	/** Runs one command line and returns the reply. */
+	String execute(String line) {
+		String[] words = line.split("\\s+");
+		if (words.length < 2)
+			return "NAK ? expected a sequence number and a command";
+		String seq = words[0];
+		try {
+			Long.parseLong(seq);
+		} catch (NumberFormatException e) {
+			return "NAK ? invalid sequence number";
+		}
+
+		String command = words[1].toUpperCase(Locale.ENGLISH);
+		String argument = (words.length > 2) ? words[2].toLowerCase(Locale.ENGLISH) : null;
+		String value = (words.length > 3) ? words[3] : null;
+		try {
+			String detail;
+			if (command.equals("PING")) {
+				detail = null;
+			} else if (command.equals("GET")) {
+				detail = describe(RuntimeConfig.get());
+			} else if (command.equals("SET") && argument != null && value != null) {
+				detail = set(argument, value);
+			} else if ((command.equals("START") || command.equals("STOP")) && argument != null) {
+				detail = setStream(argument, command.equals("START"));
+			} else {
+				return "NAK " + seq + " unknown command";
+			}
+			Log.i(TAG, line);
+			return (detail == null) ? "ACK " + seq : "ACK " + seq + " " + detail;
+		} catch (IllegalArgumentException e) {
+			return "NAK " + seq + " " + e.getMessage();
+		}
+	}
+
+	private String set(String key, String value) {
+		if (key.equals("telemetry_period")) {
+			putString(R.string.telemetryPeriodKey, String.valueOf(parseInt(value, 10, 10000)));
+		} else if (key.equals("telemetry_rate")) {
+			putString(R.string.telemetryPeriodKey, String.valueOf(1000 / parseInt(value, 1, 100)));
+		} else if (key.equals("fusion_period")) {
+			putString(R.string.fusionPeriodKey, String.valueOf(parseInt(value, 5, 1000)));
+		} else if (key.equals("filter")) {
+			float coefficient;
+			try {
+				coefficient = Float.parseFloat(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid number " + value);
+			}
+			if (!(coefficient >= 0.0f && coefficient <= 1.0f))
+				throw new IllegalArgumentException("out of range " + value);
+			putString(R.string.filterCoefficientKey, value);
+		} else if (key.equals("resolution")) {
+			if (!value.matches("\\d+x\\d+"))
+				throw new IllegalArgumentException("expected WIDTHxHEIGHT");
+			int separator = value.indexOf('x');
+			parseInt(value.substring(0, separator), RuntimeConfig.MIN_VIDEO_WIDTH, RuntimeConfig.MAX_VIDEO_WIDTH);
+			parseInt(value.substring(separator + 1), RuntimeConfig.MIN_VIDEO_HEIGHT, RuntimeConfig.MAX_VIDEO_HEIGHT);
+			putString(R.string.videoResolutionKey, value);
+		} else if (key.equals("fps")) {
+			putString(R.string.frameRateKey, String.valueOf(parseInt(value, 1, 60)));
+		} else if (key.equals("quality")) {
+			putString(R.string.jpegQualityKey, String.valueOf(parseInt(value, 1, 100)));
+		} else if (key.equals("fusion_mode")) {
+			final int output = SensorFusion.getOutputByName(value);
+			if (output < 0)
+				throw new IllegalArgumentException("unknown mode " + value);
+			// The backend and the detectors are reset, which must not race with the sensor callbacks
+			final boolean[] supported = new boolean[1];
+			boolean done = runOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					supported[0] = service.getSensorFusion().setOutputSelection(output);
+				}
+			});
+			if (!done)
+				return PENDING;
+			if (!supported[0])
+				throw new IllegalArgumentException("unsupported mode " + value);
+			// Restored by the service when it starts again
+			putString(R.string.fusionModeKey, SensorFusion.OUTPUT_NAMES[output]);
+			return null;
+		} else if (key.equals("low_power")) {
+			final boolean enabled = parseSwitch(value);
+			boolean done = runOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					service.getSensorFusion().setLowPowerEnabled(enabled);
+				}
+			});
+			return done ? null : PENDING;
+		} else {
+			throw new IllegalArgumentException("unknown setting " + key);
+		}
+		// Applied before the acknowledgement, the preference listener applies it again later on the main thread
+		service.readSettings();
+		return null;
+	}
+
+	private String setStream(String stream, final boolean start) {
+		if (stream.equals("video")) {
+			// Only a camera preview sends video, the activity attaches one while it is visible
+			if (service.getCameraPreview() == null)
+				throw new IllegalArgumentException("no camera preview");
+			RuntimeConfig.edit().setStreamingVideo(start).commit();
+		} else if (stream.equals("stats")) {
+			prefs.edit().putBoolean(service.getString(R.string.statsStreamKey), start).commit();
+			service.readSettings();
+		} else if (stream.equals("motion")) {
+			prefs.edit().putBoolean(service.getString(R.string.motionStreamKey), start).commit();
+			service.readSettings();
+		} else if (stream.equals("telemetry")) {
+			boolean done = runOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					service.setTransmitting(start);
+				}
+			});
+			if (!done)
+				return PENDING;
+		} else if (stream.equals("recording")) {
+			final boolean[] recording = new boolean[1];
+			boolean done = runOnMainThread(new Runnable() {
+				@Override
+				public void run() {
+					if (start)
+						service.startRecording();
+					else
+						service.stopRecording();
+					recording[0] = service.isRecording();
+				}
+			});
+			if (!done)
+				return PENDING;
+			if (recording[0] != start)
+				throw new IllegalArgumentException("recording failed");
+		} else {
+			throw new IllegalArgumentException("unknown stream " + stream);
+		}
+		return null;
+	}
+
+	/**
+	 * Runs a task on the main thread, as the service is not thread safe, and waits for it. A task that has not started
+	 * when the wait times out is cancelled and refused, so it never runs after a refusal.
+	 *
+	 * @return true if the task ran, false if it started but is still running
+	 */
+	private boolean runOnMainThread(final Runnable task) {
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+		final CountDownLatch done = new CountDownLatch(1);
+		Runnable wrapper = new Runnable() {
+			@Override
+			public void run() {
+				if (!state.compareAndSet(QUEUED, STARTED))
+					return;
+				try {
+					task.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		mainHandler.post(wrapper);
+		boolean isDone;
+		try {
+			isDone = done.await(MAIN_THREAD_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			isDone = false;
+		}
+		if (isDone)
+			return true;
+		if (state.compareAndSet(QUEUED, CANCELLED)) {
+			mainHandler.removeCallbacks(wrapper);
+			throw new IllegalArgumentException("timeout, not applied");
+		}
+		return false;
+	}
+
+	private void putString(int key, String value) {
+		prefs.edit().putString(service.getString(key), value).commit();
+	}
+
+	private static int parseInt(String value, int min, int max) {
+		int result;
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid number " + value);
+		}
+		if (result < min || result > max)
+			throw new IllegalArgumentException("out of range " + value);
+		return result;
+	}
+
+	private static boolean parseSwitch(String value) {
+		if (value.equalsIgnoreCase("on"))
+			return true;
+		if (value.equalsIgnoreCase("off"))
+			return false;
+		throw new IllegalArgumentException("expected on or off");
+	}
+
+	private String describe(RuntimeConfig config) {
+		SensorFusion sensorFusion = service.getSensorFusion();
+		int output = sensorFusion.IMUOutputSelection;
+		return String.format(Locale.ENGLISH, "telemetry=%s telemetry_period=%d fusion_mode=%s fusion_period=%d filter=%.2f low_power=%s video=%s resolution=%dx%d fps=%d quality=%d stats=%s motion=%s recording=%s first_sample_ms=%d first_fusion_ms=%d first_frame_ms=%d",
+				service.isTransmitting() ? "on" : "off", config.telemetryPeriod, (output >= 0) ? SensorFusion.OUTPUT_NAMES[output] : "none", config.fusionPeriod,
+				config.filterCoefficient, sensorFusion.isLowPowerEnabled() ? "on" : "off", config.isStreamingVideo ? "on" : "off", config.videoWidth,
+				config.videoHeight, config.frameRate, config.jpegQuality, config.isStreamingStats ? "on" : "off", config.isStreamingMotion ? "on" : "off", service.isRecording() ? "on" : "off",
+				StartupMetrics.getMillis(StartupMetrics.FIRST_VALID_SAMPLE), StartupMetrics.getMillis(StartupMetrics.FIRST_FUSION),
+				StartupMetrics.getMillis(StartupMetrics.FIRST_FRAME));
+	}
+}
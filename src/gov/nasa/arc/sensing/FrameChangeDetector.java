@@ -0,0 +1,123 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Decides whether a preview frame is worth sending by comparing a subsampled grid of its luma against the last frame
+ * that was sent, and by looking at how fast the device is rotating. Static scenes on a static device are skipped, but a
+ * keyframe is still forced every {@link #getKeyframeInterval()} frames so the receiver never goes stale.
+ */
+public class FrameChangeDetector {
+
+	// Sample every STEP-th pixel in both directions of the Y plane
+	private static final int STEP = 8;
+
+	// Mean absolute luma difference per sample above which the scene is considered changed
+	public static final float DEFAULT_SAD_THRESHOLD = 4.0f;
+	// Angular rate (rad/s) above which the camera is considered moving
+	public static final float DEFAULT_RATE_THRESHOLD = 0.05f;
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+
+	private float sadThreshold = DEFAULT_SAD_THRESHOLD;
+	private float rateThreshold = DEFAULT_RATE_THRESHOLD;
+	private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+	private byte[] reference;
+	private int referenceWidth;
+	private int referenceHeight;
+	private int framesSinceSent;
+	// Whether the last frame sent was only sent because the keyframe interval elapsed
+	private boolean forced;
+
+	/**
+	 * Returns true if the frame should be sent. When it returns true the frame becomes the new reference.
+	 *
+	 * @param data
+	 *            byte array on YUV420 NV21 format, only the Y plane is read.
+	 * @param width
+	 *            pixels width
+	 * @param height
+	 *            pixels height
+	 * @param angularRate
+	 *            current angular rate of the device in rad/s
+	 */
+	public synchronized boolean shouldSend(byte[] data, int width, int height, float angularRate) {
+		int columns = (width + STEP - 1) / STEP;
+		int rows = (height + STEP - 1) / STEP;
+		if (reference == null || width != referenceWidth || height != referenceHeight) {
+			reference = new byte[columns * rows];
+			referenceWidth = width;
+			referenceHeight = height;
+			sample(data, width, height);
+			return sent(false);
+		}
+
+		if (++framesSinceSent >= keyframeInterval) {
+			sample(data, width, height);
+			return sent(true);
+		}
+
+		int sad = 0;
+		int k = 0;
+		for (int y = 0; y < height; y += STEP) {
+			int row = y * width;
+			for (int x = 0; x < width; x += STEP, k++) {
+				int diff = (data[row + x] & 0xff) - (reference[k] & 0xff);
+				sad += diff < 0 ? -diff : diff;
+			}
+		}
+		if (sad / (float) k > sadThreshold || angularRate > rateThreshold) {
+			sample(data, width, height);
+			return sent(false);
+		}
+		return false;
+	}
+
+	private boolean sent(boolean forced) {
+		framesSinceSent = 0;
+		this.forced = forced;
+		return true;
+	}
+
+	private void sample(byte[] data, int width, int height) {
+		int k = 0;
+		for (int y = 0; y < height; y += STEP) {
+			int row = y * width;
+			for (int x = 0; x < width; x += STEP) {
+				reference[k++] = data[row + x];
+			}
+		}
+	}
+
+	/** Forgets the reference frame so the next frame is always sent. */
+	public synchronized void reset() {
+		reference = null;
+	}
+
+	/** Returns true if the last frame sent would have been skipped but for the keyframe interval. */
+	public synchronized boolean isForced() {
+		return forced;
+	}
+
+	public synchronized float getSadThreshold() {
+		return sadThreshold;
+	}
+
+	public synchronized void setSadThreshold(float sadThreshold) {
+		this.sadThreshold = sadThreshold;
+	}
+
+	public synchronized float getRateThreshold() {
+		return rateThreshold;
+	}
+
+	public synchronized void setRateThreshold(float rateThreshold) {
+		this.rateThreshold = rateThreshold;
+	}
+
+	public synchronized int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	public synchronized void setKeyframeInterval(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+}
@@ -0,0 +1,34 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Source of the orientation published by {@link SensorFusion}. The fusion registers the sensors returned by
+ * {@link #getSensorTypes()}, forwards every sample to {@link #onSensorSample} on the sensor thread and calls
+ * {@link #fuse} on every tick of the fusion timer. The accelerometer and magnetometer are always read by the fusion
+ * itself, a backend gets their orientation at each tick.
+ */
+public interface FusionBackend {
+
+	/** Short name, used in the logs, the control channel and the benchmark. */
+	String getName();
+
+	/** Sensor types the orientation is computed from. */
+	int[] getSensorTypes();
+
+	/** Called for every sample of every registered sensor, the backend ignores the types it does not use. */
+	void onSensorSample(int type, long timestamp, float[] values);
+
+	/**
+	 * Writes the azimuth, pitch and roll in radians, in the remapped coordinate system.
+	 *
+	 * @param accMagOrientation
+	 *            orientation from the accelerometer and magnetometer at this tick
+	 * @return false if no orientation is available yet
+	 */
+	boolean fuse(float[] accMagOrientation, float[] orientation);
+
+	/** Selects the axes passed to SensorManager.remapCoordinateSystem for the display orientation. */
+	void setCoordinateRemap(int axisX, int axisY);
+
+	/** Forgets the state, called when the sensors stop. */
+	void reset();
+}
@@ -0,0 +1,102 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the spirit of HdrHistogram: every power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, which bounds the relative error of a reported value to 1/16 while covering 1 ns
+ * to 18 minutes with 608 counters. Recording does not allocate.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Values above 2^40 ns are counted in the last bucket
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	public synchronized void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		else if (nanos > MAX_VALUE)
+			nanos = MAX_VALUE;
+		counts[index(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos < min)
+			min = nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	// Middle of the range of values counted in a bucket
+	private static long value(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) >> 1);
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded values fall, 0 if nothing was recorded.
+	 *
+	 * @param percentile
+	 *            0 to 100
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		long target = (long) Math.ceil(count * percentile / 100.0);
+		if (target < 1)
+			target = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(Math.max(value(i), min), max);
+		}
+		return max;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMean() {
+		return (count == 0) ? 0 : sum / count;
+	}
+
+	public synchronized long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+}
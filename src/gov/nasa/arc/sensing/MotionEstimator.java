@@ -0,0 +1,120 @@
+package gov.nasa.arc.sensing;
+
+import android.hardware.SensorManager;
+
+/**
+ * Gravity-free acceleration and short-horizon velocity in the world frame (x east, y north, z up). Every accelerometer
+ * sample is rotated with the fused orientation and the gravity is subtracted. The velocity integrates the linear
+ * acceleration with a leak of time constant {@link #VELOCITY_TIME_CONSTANT}, so that the drift of the integration stays
+ * bounded, and is reset to zero whenever the device is stationary. While it is stationary the magnitude of the gravity
+ * is also re-estimated, which absorbs most of the accelerometer scale error.
+ *
+ * Nothing is allocated per sample.
+ */
+public class MotionEstimator {
+
+	// Seconds after which an unobserved velocity has decayed to 1/e
+	public static final float VELOCITY_TIME_CONSTANT = 2.0f;
+	// Longer gaps between two samples are not integrated, the sensors were paused or slowed down
+	public static final float MAX_INTERVAL = 0.2f; // s
+	// Weight of a stationary sample in the gravity estimate
+	public static final float GRAVITY_GAIN = 0.01f;
+	private static final float NS2S = 1.0f / 1000000000.0f;
+
+	// Remapped direction of each device axis, one row per axis, as SensorManager.remapCoordinateSystem computes it
+	private final float[] remap = new float[9];
+	private final float[] rotation = new float[9];
+	private final float[] remappedAccel = new float[3];
+	private final float[] linearAcceleration = new float[3];
+	private final float[] velocity = new float[3];
+	private float gravity = SensorManager.GRAVITY_EARTH;
+	private long timestamp;
+
+	public MotionEstimator() {
+		setCoordinateRemap(SensorManager.AXIS_X, SensorManager.AXIS_Y);
+	}
+
+	/** Uses the same axes as SensorManager.remapCoordinateSystem did for the orientation. */
+	public synchronized void setCoordinateRemap(int axisX, int axisY) {
+		setAxis(0, axisX);
+		setAxis(3, axisY);
+		// z = x cross y, so that the remapping stays a rotation
+		remap[6] = remap[1] * remap[5] - remap[2] * remap[4];
+		remap[7] = remap[2] * remap[3] - remap[0] * remap[5];
+		remap[8] = remap[0] * remap[4] - remap[1] * remap[3];
+	}
+
+	private void setAxis(int row, int axis) {
+		remap[row] = 0.0f;
+		remap[row + 1] = 0.0f;
+		remap[row + 2] = 0.0f;
+		remap[row + (axis & 0x03) - 1] = ((axis & 0x80) != 0) ? -1.0f : 1.0f;
+	}
+
+	/**
+	 * Processes one accelerometer sample.
+	 *
+	 * @param orientation
+	 *            azimuth, pitch and roll of the device in the remapped coordinate system
+	 */
+	public synchronized void update(long eventTimestamp, float[] accel, float[] orientation, boolean isStationary) {
+		remappedAccel[0] = remap[0] * accel[0] + remap[3] * accel[1] + remap[6] * accel[2];
+		remappedAccel[1] = remap[1] * accel[0] + remap[4] * accel[1] + remap[7] * accel[2];
+		remappedAccel[2] = remap[2] * accel[0] + remap[5] * accel[1] + remap[8] * accel[2];
+
+		// Same rotation as SensorManager.getRotationMatrix, rebuilt from the angles: azimuth, then pitch, then roll
+		float sinX = (float) Math.sin(orientation[1]);
+		float cosX = (float) Math.cos(orientation[1]);
+		float sinY = (float) Math.sin(orientation[2]);
+		float cosY = (float) Math.cos(orientation[2]);
+		float sinZ = (float) Math.sin(orientation[0]);
+		float cosZ = (float) Math.cos(orientation[0]);
+		rotation[0] = cosZ * cosY - sinZ * sinX * sinY;
+		rotation[1] = sinZ * cosX;
+		rotation[2] = cosZ * sinY + sinZ * sinX * cosY;
+		rotation[3] = -sinZ * cosY - cosZ * sinX * sinY;
+		rotation[4] = cosZ * cosX;
+		rotation[5] = -sinZ * sinY + cosZ * sinX * cosY;
+		rotation[6] = -cosX * sinY;
+		rotation[7] = -sinX;
+		rotation[8] = cosX * cosY;
+
+		linearAcceleration[0] = rotation[0] * remappedAccel[0] + rotation[1] * remappedAccel[1] + rotation[2] * remappedAccel[2];
+		linearAcceleration[1] = rotation[3] * remappedAccel[0] + rotation[4] * remappedAccel[1] + rotation[5] * remappedAccel[2];
+		linearAcceleration[2] = rotation[6] * remappedAccel[0] + rotation[7] * remappedAccel[1] + rotation[8] * remappedAccel[2] - gravity;
+
+		if (isStationary) {
+			// Zero-velocity update
+			float norm = (float) Math.sqrt(accel[0] * accel[0] + accel[1] * accel[1] + accel[2] * accel[2]);
+			gravity += GRAVITY_GAIN * (norm - gravity);
+			velocity[0] = 0.0f;
+			velocity[1] = 0.0f;
+			velocity[2] = 0.0f;
+		} else if (timestamp != 0) {
+			float dT = (eventTimestamp - timestamp) * NS2S;
+			if (dT > 0.0f && dT < MAX_INTERVAL) {
+				float leak = 1.0f - dT / VELOCITY_TIME_CONSTANT;
+				velocity[0] = velocity[0] * leak + linearAcceleration[0] * dT;
+				velocity[1] = velocity[1] * leak + linearAcceleration[1] * dT;
+				velocity[2] = velocity[2] * leak + linearAcceleration[2] * dT;
+			}
+		}
+		timestamp = eventTimestamp;
+	}
+
+	/** Copies the last linear acceleration in m/s^2 into out. */
+	public synchronized void getLinearAcceleration(float[] out) {
+		System.arraycopy(linearAcceleration, 0, out, 0, 3);
+	}
+
+	/** Copies the velocity in m/s into out. */
+	public synchronized void getVelocity(float[] out) {
+		System.arraycopy(velocity, 0, out, 0, 3);
+	}
+
+	public synchronized void reset() {
+		linearAcceleration[0] = linearAcceleration[1] = linearAcceleration[2] = 0.0f;
+		velocity[0] = velocity[1] = velocity[2] = 0.0f;
+		timestamp = 0;
+	}
+}
@@ -0,0 +1,83 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Moving average of a 3-axis sensor over the last {@link #getWindow()} samples. The samples are kept in a primitive
+ * ring buffer and the sums are updated as samples enter and leave the window, so each sample costs O(1) amortized.
+ */
+public class MovingAverageFilter {
+
+	private final int window;
+	private final float[] samples;
+	// Running sums in double. Adding and removing samples still leaves rounding errors behind, so the sums are
+	// recomputed from the window every time the ring buffer wraps, which bounds the drift to one window of updates.
+	private final double[] sums = new double[3];
+	private int head;
+	private int count;
+
+	public MovingAverageFilter(int window) {
+		this.window = window;
+		samples = new float[3 * window];
+	}
+
+	public void add(float[] values) {
+		int i = 3 * head;
+		if (count == window) {
+			sums[0] -= samples[i];
+			sums[1] -= samples[i + 1];
+			sums[2] -= samples[i + 2];
+		} else {
+			count++;
+		}
+		samples[i] = values[0];
+		samples[i + 1] = values[1];
+		samples[i + 2] = values[2];
+		sums[0] += values[0];
+		sums[1] += values[1];
+		sums[2] += values[2];
+		head = (head + 1) % window;
+		if (head == 0)
+			recomputeSums();
+	}
+
+	private void recomputeSums() {
+		double x = 0, y = 0, z = 0;
+		for (int i = 0; i < 3 * count; i += 3) {
+			x += samples[i];
+			y += samples[i + 1];
+			z += samples[i + 2];
+		}
+		sums[0] = x;
+		sums[1] = y;
+		sums[2] = z;
+	}
+
+	/**
+	 * Writes the average of the samples in the window into out.
+	 *
+	 * @return false if no sample was added yet, in which case out is left untouched
+	 */
+	public boolean getAverage(float[] out) {
+		if (count == 0)
+			return false;
+		out[0] = (float) (sums[0] / count);
+		out[1] = (float) (sums[1] / count);
+		out[2] = (float) (sums[2] / count);
+		return true;
+	}
+
+	public void reset() {
+		head = 0;
+		count = 0;
+		sums[0] = 0;
+		sums[1] = 0;
+		sums[2] = 0;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,129 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Fixed size history of timestamped orientations, stored in primitive arrays used as a ring buffer. The fusion task
+ * appends every output it computes and any consumer can ask for the orientation at a given time, for example the
+ * capture time of a video frame, without allocating.
+ *
+ * Timestamps are in nanoseconds on the {@link System#nanoTime()} clock. The fusion task stamps each output with the time
+ * of the newest sensor sample it used, not with the time it ran. An entry that is not newer than the newest one replaces
+ * that entry's orientation, so the timestamps stay strictly increasing.
+ */
+public class OrientationHistory {
+
+	// 256 entries cover more than 7 seconds at the 30 ms fusion rate
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final float PI = (float) Math.PI;
+	private static final float TWO_PI = (float) (2.0 * Math.PI);
+
+	private final int capacity;
+	private final long[] timestamps;
+	private final float[] orientations; // azimuth, pitch, roll for each entry
+
+	private int head; // index of the next entry to write
+	private int count;
+
+	public OrientationHistory() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public OrientationHistory(int capacity) {
+		this.capacity = capacity;
+		timestamps = new long[capacity];
+		orientations = new float[3 * capacity];
+	}
+
+	public synchronized void add(long timestamp, float[] orientation) {
+		if (count > 0) {
+			int newest = (head - 1 + capacity) % capacity;
+			if (timestamp <= timestamps[newest]) {
+				orientations[3 * newest] = orientation[0];
+				orientations[3 * newest + 1] = orientation[1];
+				orientations[3 * newest + 2] = orientation[2];
+				return;
+			}
+		}
+		timestamps[head] = timestamp;
+		orientations[3 * head] = orientation[0];
+		orientations[3 * head + 1] = orientation[1];
+		orientations[3 * head + 2] = orientation[2];
+		head = (head + 1) % capacity;
+		if (count < capacity)
+			count++;
+	}
+
+	/**
+	 * Writes the orientation at the given time into out, interpolating between the two entries around it. Times before
+	 * the oldest or after the newest entry are clamped to that entry.
+	 *
+	 * @return false if the history is empty, in which case out is left untouched
+	 */
+	public synchronized boolean interpolate(long timestamp, float[] out) {
+		if (count == 0)
+			return false;
+
+		int oldest = (head - count + capacity) % capacity;
+		int newest = (head - 1 + capacity) % capacity;
+		if (timestamp <= timestamps[oldest]) {
+			copy(oldest, out);
+			return true;
+		}
+		if (timestamp >= timestamps[newest]) {
+			copy(newest, out);
+			return true;
+		}
+
+		// Binary search over the logical positions 0 (oldest) .. count - 1 (newest) for the last entry <= timestamp
+		int low = 0, high = count - 1;
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			if (timestamps[(oldest + mid) % capacity] <= timestamp)
+				low = mid;
+			else
+				high = mid;
+		}
+		int a = (oldest + low) % capacity;
+		int b = (oldest + high) % capacity;
+
+		float t = (float) (timestamp - timestamps[a]) / (float) (timestamps[b] - timestamps[a]);
+		for (int i = 0; i < 3; i++) {
+			out[i] = interpolateAngle(orientations[3 * a + i], orientations[3 * b + i], t);
+		}
+		return true;
+	}
+
+	// Interpolates along the shortest arc so that a -179 to 179 transition does not swing through 0
+	private static float interpolateAngle(float from, float to, float t) {
+		float delta = to - from;
+		if (delta > PI)
+			delta -= TWO_PI;
+		else if (delta < -PI)
+			delta += TWO_PI;
+		float angle = from + t * delta;
+		if (angle > PI)
+			angle -= TWO_PI;
+		else if (angle < -PI)
+			angle += TWO_PI;
+		return angle;
+	}
+
+	private void copy(int index, float[] out) {
+		out[0] = orientations[3 * index];
+		out[1] = orientations[3 * index + 1];
+		out[2] = orientations[3 * index + 2];
+	}
+
+	public synchronized void clear() {
+		head = 0;
+		count = 0;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,190 @@
+package gov.nasa.arc.sensing;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms, counters and queue depths of the sensing pipeline, from the sensor events to the UDP sends.
+ * Recording is off by default and every entry point starts with a check of {@link #enabled}, so the instrumentation
+ * costs one field read when it is off.
+ */
+public final class PipelineStats {
+
+	public static volatile boolean enabled = false;
+
+	// Stages
+	public static final int SENSOR_TO_FUSION = 0; // age of the oldest sample consumed by a fusion step
+	public static final int FUSION = 1; // duration of a fusion step
+	public static final int HANDLER_POST = 2; // from the fusion step to the display update on the UI thread
+	public static final int TELEMETRY_SEND = 3; // orientation UDP send
+	public static final int JPEG_ENCODE = 4; // JPEG encode of a frame or of all its tiles
+	public static final int VIDEO_SEND = 5; // UDP send of all the packets of a frame
+	public static final int STAGES = 6;
+
+	private static final String[] STAGE_NAMES = { "sensor>fusion", "fusion", "post", "telemetry", "jpeg", "video send" };
+
+	// Counters
+	public static final int SENSOR_EVENTS = 0;
+	public static final int FUSION_TICKS = 1;
+	public static final int TELEMETRY_PACKETS = 2;
+	public static final int TELEMETRY_DROPS = 3; // ticks skipped because the telemetry thread ran a period or more late
+	public static final int VIDEO_FRAMES = 4;
+	public static final int VIDEO_PACKETS = 5;
+	public static final int VIDEO_SKIPPED = 6; // not sent because nothing changed
+	public static final int VIDEO_FORCED = 7; // keyframes sent because the keyframe or refresh interval elapsed
+	public static final int VIDEO_DECIMATED = 8; // not sent to lower the frame rate while stationary
+	public static final int VIDEO_DROPS = 9; // not sent because the previous frames were still in flight
+	public static final int SEND_ERRORS = 10;
+	public static final int LOW_POWER_ENTRIES = 11; // switches to the low-power profile while stationary
+	public static final int COUNTERS = 12;
+
+	private static final String[] COUNTER_NAMES = { "sensor events", "fusion ticks", "telemetry packets", "telemetry drops", "video frames",
+			"video packets", "video skipped", "video forced", "video decimated", "video drops", "send errors", "low power" };
+
+	// Queues
+	public static final int TELEMETRY_QUEUE = 0; // telemetry sends in flight
+	public static final int VIDEO_QUEUE = 1; // frames being sent
+	public static final int QUEUES = 2;
+
+	private static final String[] QUEUE_NAMES = { "telemetry queue", "video queue" };
+
+	public static final int STATS_MAGIC = 0x53544154; // "STAT"
+	public static final int STATS_VERSION = 3;
+	public static final int STATS_PACKET_SIZE = 12 + 8 * COUNTERS + 8 * QUEUES + 32 * STAGES;
+
+	private static final LatencyHistogram[] histograms = new LatencyHistogram[STAGES];
+	private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+	private static final AtomicInteger[] queues = new AtomicInteger[QUEUES];
+	private static final AtomicInteger[] queueMax = new AtomicInteger[QUEUES];
+	private static long startNanos = System.nanoTime();
+
+	static {
+		for (int i = 0; i < STAGES; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < QUEUES; i++) {
+			queues[i] = new AtomicInteger();
+			queueMax[i] = new AtomicInteger();
+		}
+	}
+
+	private PipelineStats() {
+	}
+
+	/** Returns System.nanoTime() when recording, 0 otherwise. Pass the result to {@link #recordSince}. */
+	public static long now() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** Records the time elapsed since a value returned by {@link #now()}, ignored if recording was off then. */
+	public static void recordSince(int stage, long start) {
+		if (enabled && start != 0)
+			histograms[stage].record(System.nanoTime() - start);
+	}
+
+	public static void record(int stage, long nanos) {
+		if (enabled)
+			histograms[stage].record(nanos);
+	}
+
+	public static void increment(int counter) {
+		if (enabled)
+			counters.incrementAndGet(counter);
+	}
+
+	public static void add(int counter, long delta) {
+		if (enabled)
+			counters.addAndGet(counter, delta);
+	}
+
+	/**
+	 * Counts an item entering a queue, whether or not recording is on, so that depth limits keep working.
+	 *
+	 * @return the new depth
+	 */
+	public static int enter(int queue) {
+		int depth = queues[queue].incrementAndGet();
+		if (enabled) {
+			AtomicInteger max = queueMax[queue];
+			int current;
+			while (depth > (current = max.get()) && !max.compareAndSet(current, depth)) {
+			}
+		}
+		return depth;
+	}
+
+	public static void leave(int queue) {
+		queues[queue].decrementAndGet();
+	}
+
+	public static int getQueueDepth(int queue) {
+		return queues[queue].get();
+	}
+
+	public static LatencyHistogram getHistogram(int stage) {
+		return histograms[stage];
+	}
+
+	public static long getCounter(int counter) {
+		return counters.get(counter);
+	}
+
+	public static synchronized void reset() {
+		for (int i = 0; i < STAGES; i++) {
+			histograms[i].reset();
+		}
+		for (int i = 0; i < COUNTERS; i++) {
+			counters.set(i, 0);
+		}
+		for (int i = 0; i < QUEUES; i++) {
+			queueMax[i].set(queues[i].get());
+		}
+		startNanos = System.nanoTime();
+	}
+
+	/** Formats the statistics for the debug overlay, latencies in microseconds. */
+	public static String format() {
+		StringBuilder sb = new StringBuilder();
+		double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-3);
+		for (int i = 0; i < COUNTERS; i++) {
+			long value = counters.get(i);
+			sb.append(String.format(Locale.ENGLISH, "%-18s %8d %7.1f/s%n", COUNTER_NAMES[i], value, value / seconds));
+		}
+		for (int i = 0; i < QUEUES; i++) {
+			sb.append(String.format(Locale.ENGLISH, "%-18s %8d max %d%n", QUEUE_NAMES[i], queues[i].get(), queueMax[i].get()));
+		}
+		sb.append(String.format(Locale.ENGLISH, "%-13s %6s %7s %7s %7s%n", "us", "n", "p50", "p99", "max"));
+		for (int i = 0; i < STAGES; i++) {
+			LatencyHistogram h = histograms[i];
+			sb.append(String.format(Locale.ENGLISH, "%-13s %6d %7d %7d %7d%n", STAGE_NAMES[i], h.getCount(), h.getValueAtPercentile(50) / 1000,
+					h.getValueAtPercentile(99) / 1000, h.getMax() / 1000));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a stats packet of {@link #STATS_PACKET_SIZE} bytes: magic, version, uptime in ms, the counters, the queue
+	 * depths, then count, p50, p99 and max in ns for every stage. All values are big endian.
+	 */
+	public static void writePacket(ByteBuffer buffer) {
+		buffer.putInt(STATS_MAGIC);
+		buffer.putInt(STATS_VERSION);
+		buffer.putInt((int) ((System.nanoTime() - startNanos) / 1000000));
+		for (int i = 0; i < COUNTERS; i++) {
+			buffer.putLong(counters.get(i));
+		}
+		for (int i = 0; i < QUEUES; i++) {
+			buffer.putInt(queues[i].get());
+			buffer.putInt(queueMax[i].get());
+		}
+		for (int i = 0; i < STAGES; i++) {
+			LatencyHistogram h = histograms[i];
+			buffer.putLong(h.getCount());
+			buffer.putLong(h.getValueAtPercentile(50));
+			buffer.putLong(h.getValueAtPercentile(99));
+			buffer.putLong(h.getMax());
+		}
+	}
+}
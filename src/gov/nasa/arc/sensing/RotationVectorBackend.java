@@ -0,0 +1,122 @@
+package gov.nasa.arc.sensing;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Build;
+
+/**
+ * Orientation from a rotation vector sensor, fused by the platform and usually on the sensor hub, so it costs the app
+ * no more than the delivery of the samples. {@link Sensor#TYPE_ROTATION_VECTOR} is preferred because its azimuth is
+ * referenced to magnetic north like the complementary filter's; {@link #TYPE_GAME_ROTATION_VECTOR} does without
+ * the magnetometer and its azimuth is relative to where it started.
+ *
+ * The latest sample is only stored on the sensor thread, the orientation is computed once per fusion tick.
+ */
+public class RotationVectorBackend implements FusionBackend {
+
+	// Sensor.TYPE_GAME_ROTATION_VECTOR, added in API 18, the app builds against API 16
+	public static final int TYPE_GAME_ROTATION_VECTOR = 15;
+	private static final int GAME_ROTATION_VECTOR_SDK = 18;
+
+	private final int sensorType;
+	private final int[] sensorTypes;
+
+	// guards the latest sample and the remapping, written by the sensor thread and read by the fusion task
+	private final Object lock = new Object();
+	private final float[] rotationVector = new float[4];
+	private boolean hasSample;
+	private boolean isDirty;
+	private int remapAxisX = SensorManager.AXIS_Z;
+	private int remapAxisY = SensorManager.AXIS_MINUS_X;
+
+	// only used by the fusion task
+	private final float[] vector = new float[4];
+	private final float[] rotationMatrix = new float[9];
+	private final float[] outputRotationMatrix = new float[9];
+	private final float[] orientation = new float[3];
+
+	public RotationVectorBackend(int sensorType) {
+		this.sensorType = sensorType;
+		sensorTypes = new int[] { sensorType };
+	}
+
+	/** Returns a backend for the best rotation vector sensor of the device, or null if it has none. */
+	public static RotationVectorBackend create(SensorManager manager) {
+		if (manager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR) != null)
+			return new RotationVectorBackend(Sensor.TYPE_ROTATION_VECTOR);
+		if (Build.VERSION.SDK_INT >= GAME_ROTATION_VECTOR_SDK && manager.getDefaultSensor(TYPE_GAME_ROTATION_VECTOR) != null)
+			return new RotationVectorBackend(TYPE_GAME_ROTATION_VECTOR);
+		return null;
+	}
+
+	@Override
+	public String getName() {
+		return (sensorType == TYPE_GAME_ROTATION_VECTOR) ? "game_rotation_vector" : "rotation_vector";
+	}
+
+	@Override
+	public int[] getSensorTypes() {
+		return sensorTypes;
+	}
+
+	@Override
+	public void onSensorSample(int type, long timestamp, float[] values) {
+		if (type != sensorType)
+			return;
+		synchronized (lock) {
+			rotationVector[0] = values[0];
+			rotationVector[1] = values[1];
+			rotationVector[2] = values[2];
+			// Some devices send a fifth value that getRotationMatrixFromVector rejects, and recordings keep only three
+			if (values.length >= 4) {
+				rotationVector[3] = values[3];
+			} else {
+				float w = 1.0f - values[0] * values[0] - values[1] * values[1] - values[2] * values[2];
+				rotationVector[3] = (w > 0.0f) ? (float) Math.sqrt(w) : 0.0f;
+			}
+			hasSample = true;
+			isDirty = true;
+		}
+	}
+
+	@Override
+	public void setCoordinateRemap(int axisX, int axisY) {
+		synchronized (lock) {
+			remapAxisX = axisX;
+			remapAxisY = axisY;
+			isDirty = true;
+		}
+	}
+
+	@Override
+	public boolean fuse(float[] accMagOrientation, float[] out) {
+		boolean isNew;
+		int axisX, axisY;
+		synchronized (lock) {
+			if (!hasSample)
+				return false;
+			isNew = isDirty;
+			isDirty = false;
+			System.arraycopy(rotationVector, 0, vector, 0, 4);
+			axisX = remapAxisX;
+			axisY = remapAxisY;
+		}
+
+		// Only a new sample or remapping needs the matrices
+		if (isNew) {
+			SensorManager.getRotationMatrixFromVector(rotationMatrix, vector);
+			SensorManager.remapCoordinateSystem(rotationMatrix, axisX, axisY, outputRotationMatrix);
+			SensorManager.getOrientation(outputRotationMatrix, orientation);
+		}
+		System.arraycopy(orientation, 0, out, 0, 3);
+		return true;
+	}
+
+	@Override
+	public void reset() {
+		synchronized (lock) {
+			hasSample = false;
+			isDirty = false;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package gov.nasa.arc.sensing;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Immutable snapshot of the settings that can change while the pipeline runs: destinations, rates, filter coefficient
+ * and video parameters. The current snapshot is swapped atomically by {@link Editor#commit()}, so the fusion, telemetry
+ * and video stages read it without locking with {@link #get()}, once per step, and always see a consistent set of
+ * values. Changes that need more than a read, such as new camera parameters, are announced to the listeners.
+ *
+ * Several threads commit, the preference listener on the main thread and the control channel on its own. A commit only
+ * applies the fields its editor set, on top of the snapshot current at that time, so concurrent edits of different
+ * fields do not undo each other.
+ */
+public final class RuntimeConfig {
+
+	public interface Listener {
+		/** Called on the thread that committed the change. */
+		void onConfigChanged(RuntimeConfig previous, RuntimeConfig config);
+	}
+
+	public static final String DEFAULT_HOST = "255.255.255.255";
+	public static final int DEFAULT_SENSOR_PORT = 9001;
+	public static final int DEFAULT_CAMERA_PORT = 9002;
+	public static final int DEFAULT_STATS_PORT = 9003;
+	public static final int DEFAULT_CONTROL_PORT = 9004;
+	public static final int DEFAULT_MOTION_PORT = 9005;
+	public static final int DEFAULT_TELEMETRY_PERIOD = 100; // ms
+	public static final int DEFAULT_FUSION_PERIOD = 30; // ms
+	public static final float DEFAULT_FILTER_COEFFICIENT = 0.90f;
+	public static final int DEFAULT_JPEG_QUALITY = 70;
+	public static final int DEFAULT_VIDEO_WIDTH = 320;
+	public static final int DEFAULT_VIDEO_HEIGHT = 240;
+	// Largest resolution offered in the settings, a bigger JPEG could need more packets than the one byte count allows
+	public static final int MIN_VIDEO_WIDTH = 16;
+	public static final int MIN_VIDEO_HEIGHT = 16;
+	public static final int MAX_VIDEO_WIDTH = 640;
+	public static final int MAX_VIDEO_HEIGHT = 480;
+	public static final int DEFAULT_FRAME_RATE = 30;
+
+	private static final AtomicReference<RuntimeConfig> current = new AtomicReference<RuntimeConfig>(new Editor().build());
+	private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public final String host;
+	public final int sensorPort;
+	public final int cameraPort;
+	public final int statsPort;
+	public final boolean isStreamingStats;
+	public final boolean isStreamingMotion;
+	public final int motionPort;
+	public final boolean isStreamingVideo;
+	public final boolean isControlEnabled;
+	public final int controlPort;
+	public final int telemetryPeriod;
+	public final int fusionPeriod;
+	public final float filterCoefficient;
+	public final int jpegQuality;
+	public final int videoWidth;
+	public final int videoHeight;
+	public final int frameRate;
+
+	// Resolved on first use by a sending thread, a race only resolves the same host twice
+	private volatile InetAddress hostAddress;
+
+	private RuntimeConfig(Editor editor) {
+		host = editor.host;
+		sensorPort = editor.sensorPort;
+		cameraPort = editor.cameraPort;
+		statsPort = editor.statsPort;
+		isStreamingStats = editor.isStreamingStats;
+		isStreamingMotion = editor.isStreamingMotion;
+		motionPort = editor.motionPort;
+		isStreamingVideo = editor.isStreamingVideo;
+		isControlEnabled = editor.isControlEnabled;
+		controlPort = editor.controlPort;
+		telemetryPeriod = editor.telemetryPeriod;
+		fusionPeriod = editor.fusionPeriod;
+		filterCoefficient = editor.filterCoefficient;
+		jpegQuality = editor.jpegQuality;
+		videoWidth = editor.videoWidth;
+		videoHeight = editor.videoHeight;
+		frameRate = editor.frameRate;
+	}
+
+	public static RuntimeConfig get() {
+		return current.get();
+	}
+
+	public static void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/** Returns an editor initialized with the current values. */
+	public static Editor edit() {
+		return new Editor(get());
+	}
+
+	public InetAddress getHostAddress() throws UnknownHostException {
+		InetAddress address = hostAddress;
+		if (address == null) {
+			address = InetAddress.getByName(host);
+			hostAddress = address;
+		}
+		return address;
+	}
+
+	public boolean hasSameVideoFormat(RuntimeConfig other) {
+		return videoWidth == other.videoWidth && videoHeight == other.videoHeight && frameRate == other.frameRate;
+	}
+
+	/**
+	 * Reads the settings from the preferences written by {@link SettingsActivity}, invalid values fall back to the
+	 * defaults. Settings that only exist at runtime, such as {@link #isStreamingVideo}, keep their current value.
+	 */
+	public static Editor fromPreferences(Context context, SharedPreferences prefs) {
+		Editor editor = new Editor(get());
+		editor.setHost(prefs.getString(context.getString(R.string.ipAddressKey), DEFAULT_HOST));
+		editor.setSensorPort(getInt(prefs, context.getString(R.string.sensorPortKey), DEFAULT_SENSOR_PORT));
+		editor.setCameraPort(getInt(prefs, context.getString(R.string.cameraPortKey), DEFAULT_CAMERA_PORT));
+		editor.setStatsPort(getInt(prefs, context.getString(R.string.statsPortKey), DEFAULT_STATS_PORT));
+		editor.setStreamingStats(prefs.getBoolean(context.getString(R.string.statsStreamKey), false));
+		editor.setStreamingMotion(prefs.getBoolean(context.getString(R.string.motionStreamKey), false));
+		editor.setMotionPort(getInt(prefs, context.getString(R.string.motionPortKey), DEFAULT_MOTION_PORT));
+		editor.setControlEnabled(prefs.getBoolean(context.getString(R.string.controlEnabledKey), false));
+		editor.setControlPort(getInt(prefs, context.getString(R.string.controlPortKey), DEFAULT_CONTROL_PORT));
+		editor.setTelemetryPeriod(getInt(prefs, context.getString(R.string.telemetryPeriodKey), DEFAULT_TELEMETRY_PERIOD));
+		editor.setFusionPeriod(getInt(prefs, context.getString(R.string.fusionPeriodKey), DEFAULT_FUSION_PERIOD));
+		try {
+			String coefficient = prefs.getString(context.getString(R.string.filterCoefficientKey), null);
+			if (coefficient != null)
+				editor.setFilterCoefficient(Float.parseFloat(coefficient));
+		} catch (NumberFormatException e) {
+			editor.setFilterCoefficient(DEFAULT_FILTER_COEFFICIENT);
+		}
+		editor.setJpegQuality(getInt(prefs, context.getString(R.string.jpegQualityKey), DEFAULT_JPEG_QUALITY));
+		editor.setFrameRate(getInt(prefs, context.getString(R.string.frameRateKey), DEFAULT_FRAME_RATE));
+		String resolution = prefs.getString(context.getString(R.string.videoResolutionKey), null);
+		if (resolution != null)
+			editor.setResolution(resolution);
+		return editor;
+	}
+
+	private static int getInt(SharedPreferences prefs, String key, int defaultValue) {
+		try {
+			return Integer.parseInt(prefs.getString(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Collects new values on top of a snapshot. Setters clamp their values to the supported range, so a committed
+	 * configuration is always usable. Invalid values are ignored and leave the field unset.
+	 */
+	public static class Editor {
+		// Fields set on this editor, re-applied on top of the current snapshot by commit
+		private static final int HOST = 1 << 0;
+		private static final int SENSOR_PORT = 1 << 1;
+		private static final int CAMERA_PORT = 1 << 2;
+		private static final int STATS_PORT = 1 << 3;
+		private static final int STREAMING_STATS = 1 << 4;
+		private static final int STREAMING_MOTION = 1 << 5;
+		private static final int MOTION_PORT = 1 << 6;
+		private static final int STREAMING_VIDEO = 1 << 7;
+		private static final int CONTROL_ENABLED = 1 << 8;
+		private static final int CONTROL_PORT = 1 << 9;
+		private static final int TELEMETRY_PERIOD = 1 << 10;
+		private static final int FUSION_PERIOD = 1 << 11;
+		private static final int FILTER_COEFFICIENT = 1 << 12;
+		private static final int JPEG_QUALITY = 1 << 13;
+		private static final int RESOLUTION = 1 << 14;
+		private static final int FRAME_RATE = 1 << 15;
+		private int edited;
+
+		private String host = DEFAULT_HOST;
+		private int sensorPort = DEFAULT_SENSOR_PORT;
+		private int cameraPort = DEFAULT_CAMERA_PORT;
+		private int statsPort = DEFAULT_STATS_PORT;
+		private boolean isStreamingStats;
+		private boolean isStreamingMotion;
+		private int motionPort = DEFAULT_MOTION_PORT;
+		private boolean isStreamingVideo = true;
+		private boolean isControlEnabled;
+		private int controlPort = DEFAULT_CONTROL_PORT;
+		private int telemetryPeriod = DEFAULT_TELEMETRY_PERIOD;
+		private int fusionPeriod = DEFAULT_FUSION_PERIOD;
+		private float filterCoefficient = DEFAULT_FILTER_COEFFICIENT;
+		private int jpegQuality = DEFAULT_JPEG_QUALITY;
+		private int videoWidth = DEFAULT_VIDEO_WIDTH;
+		private int videoHeight = DEFAULT_VIDEO_HEIGHT;
+		private int frameRate = DEFAULT_FRAME_RATE;
+
+		public Editor() {
+		}
+
+		public Editor(RuntimeConfig config) {
+			host = config.host;
+			sensorPort = config.sensorPort;
+			cameraPort = config.cameraPort;
+			statsPort = config.statsPort;
+			isStreamingStats = config.isStreamingStats;
+			isStreamingMotion = config.isStreamingMotion;
+			motionPort = config.motionPort;
+			isStreamingVideo = config.isStreamingVideo;
+			isControlEnabled = config.isControlEnabled;
+			controlPort = config.controlPort;
+			telemetryPeriod = config.telemetryPeriod;
+			fusionPeriod = config.fusionPeriod;
+			filterCoefficient = config.filterCoefficient;
+			jpegQuality = config.jpegQuality;
+			videoWidth = config.videoWidth;
+			videoHeight = config.videoHeight;
+			frameRate = config.frameRate;
+		}
+
+		public Editor setHost(String host) {
+			if (host != null && host.trim().length() > 0) {
+				this.host = host.trim();
+				edited |= HOST;
+			}
+			return this;
+		}
+
+		public Editor setSensorPort(int port) {
+			if (isValidPort(port)) {
+				sensorPort = port;
+				edited |= SENSOR_PORT;
+			}
+			return this;
+		}
+
+		public Editor setCameraPort(int port) {
+			if (isValidPort(port)) {
+				cameraPort = port;
+				edited |= CAMERA_PORT;
+			}
+			return this;
+		}
+
+		public Editor setStatsPort(int port) {
+			if (isValidPort(port)) {
+				statsPort = port;
+				edited |= STATS_PORT;
+			}
+			return this;
+		}
+
+		public Editor setStreamingStats(boolean isStreamingStats) {
+			this.isStreamingStats = isStreamingStats;
+			edited |= STREAMING_STATS;
+			return this;
+		}
+
+		// Linear acceleration and velocity packets, sent with the telemetry
+		public Editor setStreamingMotion(boolean isStreamingMotion) {
+			this.isStreamingMotion = isStreamingMotion;
+			edited |= STREAMING_MOTION;
+			return this;
+		}
+
+		public Editor setMotionPort(int port) {
+			if (isValidPort(port)) {
+				motionPort = port;
+				edited |= MOTION_PORT;
+			}
+			return this;
+		}
+
+		public Editor setStreamingVideo(boolean isStreamingVideo) {
+			this.isStreamingVideo = isStreamingVideo;
+			edited |= STREAMING_VIDEO;
+			return this;
+		}
+
+		public Editor setControlEnabled(boolean isControlEnabled) {
+			this.isControlEnabled = isControlEnabled;
+			edited |= CONTROL_ENABLED;
+			return this;
+		}
+
+		public Editor setControlPort(int port) {
+			if (isValidPort(port)) {
+				controlPort = port;
+				edited |= CONTROL_PORT;
+			}
+			return this;
+		}
+
+		// Telemetry period in ms, 10 ms to 10 s
+		public Editor setTelemetryPeriod(int period) {
+			telemetryPeriod = Math.max(10, Math.min(period, 10000));
+			edited |= TELEMETRY_PERIOD;
+			return this;
+		}
+
+		// Complementary filter period in ms, 5 ms to 1 s
+		public Editor setFusionPeriod(int period) {
+			fusionPeriod = Math.max(5, Math.min(period, 1000));
+			edited |= FUSION_PERIOD;
+			return this;
+		}
+
+		// Weight of the gyroscope in the complementary filter, 0 to 1
+		public Editor setFilterCoefficient(float coefficient) {
+			if (!Float.isNaN(coefficient)) {
+				filterCoefficient = Math.max(0.0f, Math.min(coefficient, 1.0f));
+				edited |= FILTER_COEFFICIENT;
+			}
+			return this;
+		}
+
+		public Editor setJpegQuality(int quality) {
+			jpegQuality = Math.max(1, Math.min(quality, 100));
+			edited |= JPEG_QUALITY;
+			return this;
+		}
+
+		// Requested preview size, clamped to MAX_VIDEO_WIDTH x MAX_VIDEO_HEIGHT, the camera uses the closest size it supports
+		public Editor setResolution(int width, int height) {
+			if (width > 0 && height > 0) {
+				videoWidth = Math.max(MIN_VIDEO_WIDTH, Math.min(width, MAX_VIDEO_WIDTH));
+				videoHeight = Math.max(MIN_VIDEO_HEIGHT, Math.min(height, MAX_VIDEO_HEIGHT));
+				edited |= RESOLUTION;
+			}
+			return this;
+		}
+
+		// Parses a resolution such as "320x240", ignores anything else
+		public Editor setResolution(String resolution) {
+			int separator = resolution.indexOf('x');
+			if (separator > 0) {
+				try {
+					setResolution(Integer.parseInt(resolution.substring(0, separator).trim()), Integer.parseInt(resolution.substring(separator + 1).trim()));
+				} catch (NumberFormatException e) {
+					// keep the previous resolution
+				}
+			}
+			return this;
+		}
+
+		public Editor setFrameRate(int frameRate) {
+			this.frameRate = Math.max(1, Math.min(frameRate, 60));
+			edited |= FRAME_RATE;
+			return this;
+		}
+
+		public RuntimeConfig build() {
+			return new RuntimeConfig(this);
+		}
+
+		/**
+		 * Applies the fields set on this editor to the current configuration, publishes the result and notifies the
+		 * listeners. Retries if another thread committed in the meantime, so its changes are kept.
+		 */
+		public RuntimeConfig commit() {
+			RuntimeConfig previous, config;
+			do {
+				previous = current.get();
+				config = new Editor(previous).apply(this).build();
+			} while (!current.compareAndSet(previous, config));
+			for (Listener listener : listeners) {
+				listener.onConfigChanged(previous, config);
+			}
+			return config;
+		}
+
+		// Copies the fields set on the other editor, their values are already clamped
+		private Editor apply(Editor other) {
+			int fields = other.edited;
+			if ((fields & HOST) != 0)
+				host = other.host;
+			if ((fields & SENSOR_PORT) != 0)
+				sensorPort = other.sensorPort;
+			if ((fields & CAMERA_PORT) != 0)
+				cameraPort = other.cameraPort;
+			if ((fields & STATS_PORT) != 0)
+				statsPort = other.statsPort;
+			if ((fields & STREAMING_STATS) != 0)
+				isStreamingStats = other.isStreamingStats;
+			if ((fields & STREAMING_MOTION) != 0)
+				isStreamingMotion = other.isStreamingMotion;
+			if ((fields & MOTION_PORT) != 0)
+				motionPort = other.motionPort;
+			if ((fields & STREAMING_VIDEO) != 0)
+				isStreamingVideo = other.isStreamingVideo;
+			if ((fields & CONTROL_ENABLED) != 0)
+				isControlEnabled = other.isControlEnabled;
+			if ((fields & CONTROL_PORT) != 0)
+				controlPort = other.controlPort;
+			if ((fields & TELEMETRY_PERIOD) != 0)
+				telemetryPeriod = other.telemetryPeriod;
+			if ((fields & FUSION_PERIOD) != 0)
+				fusionPeriod = other.fusionPeriod;
+			if ((fields & FILTER_COEFFICIENT) != 0)
+				filterCoefficient = other.filterCoefficient;
+			if ((fields & JPEG_QUALITY) != 0)
+				jpegQuality = other.jpegQuality;
+			if ((fields & RESOLUTION) != 0) {
+				videoWidth = other.videoWidth;
+				videoHeight = other.videoHeight;
+			}
+			if ((fields & FRAME_RATE) != 0)
+				frameRate = other.frameRate;
+			return this;
+		}
+
+		private static boolean isValidPort(int port) {
+			return port > 0 && port < 65536;
+		}
+	}
+}
@@ -10,20 +10,20 @@ import ioio.lib.util.android.IOIOActivity;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.graphics.Typeface;
-import android.hardware.SensorManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -41,86 +41,91 @@ public class SensingActivity extends IOIOActivity {
 
 	private TextView sensorXValue;
 	private TextView sensorYValue;
-	private DatagramSocket sensorSocket = null;
-	private boolean isTransmitting;
-	private boolean isIOIOConnected = false;
 	private ToggleButton togglebutton;
+	// Streams the video through the service while it transmits
+	private CameraPreview cameraPreview;
+	// Loaded in the background at startup, null until then
 	private SharedPreferences prefs;
-	private String host;
-	private int sensorPort;
+	// Loaded once per process, in the background
+	private static Typeface digitalFont;
 
 	private Handler mHandler = new Handler();
 
-	public static boolean isLandscape;
-	public static SensorFusion mSensorFusion = null;
+	private boolean isLandscape;
+
+	// Hosts the fusion and the streams, null while not bound
+	private volatile SensingService service;
 
 	final ByteBuffer byteBuffer = ByteBuffer.allocate(12);
 
+	// The display is refreshed every DISPLAY_PERIOD ms, LOW_POWER_DISPLAY_PERIOD ms while the device is stationary
+	private static final int DISPLAY_PERIOD = 100;
+	private static final int LOW_POWER_DISPLAY_PERIOD = 500;
+	// The overlay is refreshed every STATS_PERIOD display updates
+	private static final int STATS_PERIOD = 10;
+
+	private TextView statsOverlay;
+	private int statsCountdown;
+
 	private final Runnable mRunnable = new Runnable() {
 		@Override
 		public void run() {
-			if (mSensorFusion == null)
+			if (service == null)
 				return;
 
-			mHandler.postDelayed(this, 100); // Update IMU data every 50ms
-
-			sensorXValue.setText(mSensorFusion.pitch);
-			sensorYValue.setText(mSensorFusion.roll);
-
-			if (isTransmitting && !isIOIOConnected) {
-
-				Runnable updateDbRunnable = new Runnable() {
-					@Override
-					public void run() {
-						try {
-							for (float value : mSensorFusion.getFusedOrientation()) {
-								byteBuffer.putFloat(value);
-							}
-							byte[] data = byteBuffer.array();
-							DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName(host), sensorPort);
-							sensorSocket.setBroadcast(true);
-							sensorSocket.send(packet);
-
-						} catch (IOException exception) {
-							Log.e(TAG, "Error: ", exception);
-						} finally {
-							byteBuffer.clear();
-						}
-					}
-				};
-				Thread sensorThread = new Thread(updateDbRunnable);
-				sensorThread.start();
+			SensorFusion sensorFusion = service.getSensorFusion();
+			mHandler.postDelayed(this, sensorFusion.isLowPower() ? LOW_POWER_DISPLAY_PERIOD : DISPLAY_PERIOD);
+
+			sensorXValue.setText(sensorFusion.pitch);
+			sensorYValue.setText(sensorFusion.roll);
+			togglebutton.setChecked(service.isTransmitting());
+
+			if (PipelineStats.enabled && --statsCountdown <= 0) {
+				statsCountdown = STATS_PERIOD;
+				statsOverlay.setText(StartupMetrics.format() + PipelineStats.format());
 			}
 		}
 	};
 
+	private final ServiceConnection connection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			service = ((SensingService.LocalBinder) binder).getService();
+			service.setCameraPreview(cameraPreview);
+			togglebutton.setChecked(service.isTransmitting());
+			mHandler.removeCallbacks(mRunnable);
+			mHandler.post(mRunnable);
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			service = null;
+		}
+	};
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		StartupMetrics.start();
 		super.setContentView(R.layout.sensing);
 
 		// Keep the screen on so that changes in orientation can be easily observed
 		getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
-		// Get a reference to the sensor service
-		SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-
-		Typeface tf = Typeface.createFromAsset(getAssets(), "fonts/digital_bold.ttf");
-
 		// Initialize references to the UI views that will be updated in the code
 		findViewById(R.id.sensorXLabel);
 		sensorXValue = (TextView) findViewById(R.id.sensorXValue);
-		sensorXValue.setTypeface(tf);
 		findViewById(R.id.sensorYLabel);
 		sensorYValue = (TextView) findViewById(R.id.sensorYValue);
-		sensorYValue.setTypeface(tf);
+		statsOverlay = (TextView) findViewById(R.id.statsOverlay);
+		statsOverlay.setVisibility(PipelineStats.enabled ? View.VISIBLE : View.GONE);
+		cameraPreview = (CameraPreview) findViewById(R.id.cameraPreview);
+		setCameraDisplayOrientation(true);
 
-		PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
-		prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-		host = prefs.getString(getString(R.string.ipAddressKey), "255.255.255.255");
-		sensorPort = Integer.parseInt(prefs.getString(getString(R.string.sensorPortKey), "9001"));
-		isLandscape = prefs.getBoolean("landscapeMode", true);
-		setRequestedOrientation((isLandscape) ? ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE : ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+		// The font and the preferences are read from storage off the UI thread
+		if (digitalFont != null)
+			setFont(digitalFont);
+		new LoadTask().execute();
 
 		togglebutton = (ToggleButton) findViewById(R.id.sendDataToggleButton);
 		togglebutton.setOnClickListener(new OnClickListener() {
@@ -128,25 +133,60 @@ public class SensingActivity extends IOIOActivity {
 			public void onClick(View v) {
 				Vibrator vib = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
 				vib.vibrate(45);
-				isTransmitting = (((ToggleButton) v).isChecked()) ? true : false;
-				try {
-					sensorSocket = new DatagramSocket();
-				} catch (Exception exception) {
-					Log.e(TAG, "Error: ", exception);
-				}
+				if (service != null)
+					service.setTransmitting(((ToggleButton) v).isChecked());
 			}
 		});
-		mSensorFusion = new SensorFusion(sensorManager);
-		mHandler.postDelayed(mRunnable, 50); // Update IMU data every 50ms
+
+		// Started as well as bound so that it outlives this activity while it transmits or records
+		startService(new Intent(this, SensingService.class));
+	}
+
+	// Applies what onCreate left to the background: the font, the preferences and the requested orientation
+	private class LoadTask extends AsyncTask<Void, Void, SharedPreferences> {
+		@Override
+		protected SharedPreferences doInBackground(Void... params) {
+			if (digitalFont == null)
+				digitalFont = Typeface.createFromAsset(getAssets(), "fonts/digital_bold.ttf");
+			PreferenceManager.setDefaultValues(SensingActivity.this, R.xml.preferences, false);
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+			// Reads the whole file now rather than on the UI thread
+			prefs.getBoolean("landscapeMode", true);
+			return prefs;
+		}
+
+		@Override
+		protected void onPostExecute(SharedPreferences result) {
+			setFont(digitalFont);
+			prefs = result;
+			isLandscape = prefs.getBoolean("landscapeMode", true);
+			setRequestedOrientation((isLandscape) ? ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE : ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+			setCameraDisplayOrientation(isLandscape);
+		}
+	}
+
+	// Applied when the surface changes size, which the rotation of the display causes
+	private void setCameraDisplayOrientation(boolean isLandscape) {
+		cameraPreview.setCameraDisplayOrientation(isLandscape ? 0 : 90);
+	}
+
+	private void setFont(Typeface typeface) {
+		sensorXValue.setTypeface(typeface);
+		sensorYValue.setTypeface(typeface);
+	}
+
+	@Override
+	protected void onStart() {
+		super.onStart();
+
+		bindService(new Intent(this, SensingService.class), connection, Context.BIND_AUTO_CREATE);
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
 
-		// Restore the sensor listeners when user resumes the application.
-		mSensorFusion.initListeners();
-
+		mHandler.removeCallbacks(mRunnable);
 		mHandler.postDelayed(mRunnable, 50); // Update IMU data every 50ms
 	}
 
@@ -155,31 +195,28 @@ public class SensingActivity extends IOIOActivity {
 		super.onPause();
 
 		mHandler.removeCallbacks(mRunnable);
-
-		// Unregister sensor listeners to prevent the activity from draining the device's battery.
-		mSensorFusion.unregisterListeners();
-
-		isTransmitting = false;
-		togglebutton.setChecked(false);
-		if (sensorSocket != null) {
-			sensorSocket.close();
-			sensorSocket = null;
-		}
 	}
 
 	@Override
 	protected void onStop() {
 		super.onStop();
 
-		// unregister sensor listeners to prevent the activity from draining the device's battery.
-		mSensorFusion.unregisterListeners();
-	}
+		// Leaving the app stops the service unless it still has work to do in the foreground
+		SensingService service = this.service;
+		if (isFinishing() && service != null && !service.isTransmitting() && !service.isRecording())
+			stopService(new Intent(this, SensingService.class));
 
-	@Override
-	protected void onDestroy() {
-		super.onDestroy();
+		// The IOIO looper stops with the activity and its disconnect can no longer reach the service
+		if (service != null)
+			service.setIOIOConnected(false);
 
-		mSensorFusion.unregisterListeners();
+		// The preview releases the camera when its surface goes away, the service must not use it after that
+		if (service != null)
+			service.setCameraPreview(null);
+
+		// The service releases the sensors once nobody displays, transmits or records them
+		unbindService(connection);
+		this.service = null;
 	}
 
 	@Override
@@ -191,11 +228,9 @@ public class SensingActivity extends IOIOActivity {
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
-		SharedPreferences.Editor editor = prefs.edit();
-
 		switch (item.getItemId()) {
 		case R.id.udpSettings:
-			startActivityForResult(new Intent(this, SettingsActivity.class), R.id.udpSettings);
+			startActivity(new Intent(this, SettingsActivity.class));
 			break;
 		case R.id.displayOrienration:
 			if (getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -205,24 +240,32 @@ public class SensingActivity extends IOIOActivity {
 				setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 				isLandscape = true;
 			}
-			editor.putBoolean("landscapeMode", isLandscape);
-			editor.commit();
+			setCameraDisplayOrientation(isLandscape);
+			if (prefs != null)
+				prefs.edit().putBoolean("landscapeMode", isLandscape).commit();
+			if (service != null)
+				service.getSensorFusion().setLandscape(isLandscape);
 			return true;
-		}
-		return super.onOptionsItemSelected(item);
-	}
-
-	@Override
-	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-		switch (requestCode) {
-		case R.id.udpSettings:
-			if (resultCode == RESULT_OK) {
-				host = prefs.getString(getString(R.string.ipAddressKey), "255.255.255.255");
-				sensorPort = Integer.parseInt(prefs.getString(getString(R.string.sensorPortKey), "9001"));
+		case R.id.recordSensors:
+			if (service != null) {
+				if (service.isRecording())
+					service.stopRecording();
+				else
+					service.startRecording();
+				item.setChecked(service.isRecording());
 			}
-		default:
-			break;
+			return true;
+		case R.id.debugStats:
+			PipelineStats.enabled = !PipelineStats.enabled;
+			if (PipelineStats.enabled) {
+				PipelineStats.reset();
+				statsCountdown = 0;
+			}
+			statsOverlay.setVisibility(PipelineStats.enabled ? View.VISIBLE : View.GONE);
+			item.setChecked(PipelineStats.enabled);
+			return true;
 		}
+		return super.onOptionsItemSelected(item);
 	}
 
 	/**
@@ -263,11 +306,14 @@ public class SensingActivity extends IOIOActivity {
 		 */
 		@Override
 		public void loop() throws ConnectionLostException, InterruptedException {
-			isIOIOConnected = true;
+			SensingService service = SensingActivity.this.service;
+			boolean isTransmitting = service != null && service.isTransmitting();
+			if (service != null)
+				service.setIOIOConnected(true);
 			led.write(!isTransmitting);
 			if (isTransmitting) {
 				try {
-					for (float value : mSensorFusion.getFusedOrientation()) {
+					for (float value : service.getSensorFusion().getOutputOrientation()) {
 						byteBuffer.putFloat(value);
 					}
 					byte[] data = byteBuffer.array();
@@ -288,8 +334,17 @@ public class SensingActivity extends IOIOActivity {
 		@Override
 		public void disconnected() {
 			uart.close();
-			isIOIOConnected = false;
-			isTransmitting = false;
+			SensingService service = SensingActivity.this.service;
+			if (service != null)
+				service.setIOIOConnected(false);
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					SensingService service = SensingActivity.this.service;
+					if (service != null)
+						service.setTransmitting(false);
+				}
+			});
 		}
 	}
 
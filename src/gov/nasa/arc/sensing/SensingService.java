@@ -0,0 +1,467 @@
+package gov.nasa.arc.sensing;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.hardware.SensorManager;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Hosts the sensor fusion, the recorder and the telemetry stream so they keep running while the activity is recreated,
+ * paused or in the background. The activity binds to the service for display only. The service goes to the foreground
+ * while it transmits or records, and releases the sensors when nobody uses them.
+ */
+public class SensingService extends Service {
+	private static final String TAG = "SensingService";
+
+	private static final int NOTIFICATION_ID = 1;
+	// The stats packet is sent every STATS_PERIOD telemetry periods
+	private static final int STATS_PERIOD = 10;
+
+	public class LocalBinder extends Binder {
+		public SensingService getService() {
+			return SensingService.this;
+		}
+	}
+
+	private final IBinder binder = new LocalBinder();
+
+	private SensorFusion sensorFusion;
+	private boolean isListening;
+	// True while the activity is bound, the service then keeps the sensors running for the display
+	private boolean bound;
+
+	private HandlerThread telemetryThread;
+	private Handler telemetryHandler;
+	private DatagramSocket sensorSocket = null;
+	private volatile boolean isTransmitting;
+	private volatile boolean isIOIOConnected;
+	private int statsCountdown;
+	// Uptime at which the next telemetry tick is due, 0 before the first one
+	private long telemetryDue;
+	// Loaded in the background at startup, null until then
+	private SharedPreferences prefs;
+	private LoadTask loadTask;
+
+	// Remote tuning by the ground station, null while disabled
+	private ControlServer controlServer;
+	private volatile CameraPreview cameraPreview;
+
+	private final ByteBuffer byteBuffer = ByteBuffer.allocate(12);
+	// Motion packet: linear acceleration x, y, z in m/s^2 then velocity x, y, z in m/s, east, north and up
+	public static final int MOTION_PACKET_SIZE = 24;
+	private final ByteBuffer motionBuffer = ByteBuffer.allocate(MOTION_PACKET_SIZE);
+	private final float[] motionValues = new float[3];
+	private final ByteBuffer statsBuffer = ByteBuffer.allocate(PipelineStats.STATS_PACKET_SIZE);
+
+	private final Runnable telemetryTask = new Runnable() {
+		@Override
+		public void run() {
+			if (!isTransmitting)
+				return;
+			// A new period or destination applies from the next packet
+			RuntimeConfig config = RuntimeConfig.get();
+			long now = SystemClock.uptimeMillis();
+			// Every whole period the telemetry thread ran late is a tick that was never sent
+			if (telemetryDue != 0 && now - telemetryDue >= config.telemetryPeriod)
+				PipelineStats.add(PipelineStats.TELEMETRY_DROPS, (now - telemetryDue) / config.telemetryPeriod);
+			telemetryDue = now + config.telemetryPeriod;
+			telemetryHandler.postDelayed(this, config.telemetryPeriod);
+
+			if (!isIOIOConnected)
+				sendTelemetry(config);
+			if (config.isStreamingMotion)
+				sendMotion(config);
+
+			if (config.isStreamingStats && PipelineStats.enabled && --statsCountdown <= 0) {
+				statsCountdown = STATS_PERIOD;
+				sendStats(config);
+			}
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		StartupMetrics.start();
+
+		sensorFusion = new SensorFusion((SensorManager) getSystemService(SENSOR_SERVICE));
+		isListening = true;
+
+		// Sockets are created and used on this thread only
+		telemetryThread = new HandlerThread("Telemetry");
+		telemetryThread.start();
+		telemetryHandler = new Handler(telemetryThread.getLooper());
+
+		// The sensors start on the defaults, the settings apply once loaded
+		loadTask = new LoadTask();
+		loadTask.execute();
+	}
+
+	// Reads the preferences file and commits the settings, then applies them and starts the control server
+	private class LoadTask extends AsyncTask<Void, Void, SharedPreferences> {
+		@Override
+		protected SharedPreferences doInBackground(Void... params) {
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+			RuntimeConfig.fromPreferences(SensingService.this, prefs).commit();
+			return prefs;
+		}
+
+		@Override
+		protected void onPostExecute(SharedPreferences result) {
+			prefs = result;
+			// Settings apply while the streams run, without restarting the sensors or the socket
+			prefs.registerOnSharedPreferenceChangeListener(preferenceListener);
+			RuntimeConfig.addListener(configListener);
+			updateControlServer(RuntimeConfig.get());
+
+			sensorFusion.setLandscape(prefs.getBoolean("landscapeMode", true));
+			// Fusion mode chosen by the control channel, if any
+			int output = SensorFusion.getOutputByName(prefs.getString(getString(R.string.fusionModeKey), ""));
+			if (output >= 0)
+				sensorFusion.setOutputSelection(output);
+			sensorFusion.setMotionEnabled(RuntimeConfig.get().isStreamingMotion);
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		return START_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		bound = true;
+		updateListeners();
+		return binder;
+	}
+
+	// The service outlives the activity while it is started, and the system only calls onBind once per intent: a new
+	// activity that binds to the running service is only reported through onRebind
+	@Override
+	public void onRebind(Intent intent) {
+		bound = true;
+		updateListeners();
+	}
+
+	@Override
+	public boolean onUnbind(Intent intent) {
+		bound = false;
+		updateListeners();
+		return true;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		// Nothing is applied after this point if the settings are still loading
+		loadTask.cancel(false);
+		if (prefs != null)
+			prefs.unregisterOnSharedPreferenceChangeListener(preferenceListener);
+		RuntimeConfig.removeListener(configListener);
+		updateControlServer(null);
+		setTransmitting(false);
+		stopRecording();
+		sensorFusion.unregisterListeners();
+		sensorFusion.release();
+
+		// Quit once the socket has been closed
+		telemetryHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				telemetryThread.quit();
+			}
+		});
+	}
+
+	// The sensors run while an activity displays them or while the service transmits or records
+	private void updateListeners() {
+		boolean active = bound || isTransmitting || sensorFusion.getRecorder() != null;
+		if (active && !isListening) {
+			sensorFusion.initListeners();
+		} else if (!active && isListening) {
+			sensorFusion.unregisterListeners();
+		}
+		isListening = active;
+	}
+
+	// Runs in the foreground while there is work that must survive the activity
+	private void updateForeground() {
+		boolean recording = sensorFusion.getRecorder() != null;
+		if (isTransmitting || recording) {
+			Intent intent = new Intent(this, SensingActivity.class);
+			intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+			PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, 0);
+
+			String text = isTransmitting ? (recording ? "Streaming and recording" : "Streaming to " + RuntimeConfig.get().host) : "Recording";
+			startForeground(NOTIFICATION_ID, buildNotification(text, pendingIntent));
+		} else {
+			stopForeground(true);
+		}
+	}
+
+	private Notification buildNotification(String text, PendingIntent pendingIntent) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			return NotificationBuilder.build(this, getString(R.string.app_name), text, pendingIntent);
+		return buildLegacyNotification(text, pendingIntent);
+	}
+
+	// Notification.Builder does not exist before API 11
+	@SuppressWarnings("deprecation")
+	private Notification buildLegacyNotification(String text, PendingIntent pendingIntent) {
+		Notification notification = new Notification(R.drawable.ic_launcher, text, System.currentTimeMillis());
+		notification.setLatestEventInfo(this, getString(R.string.app_name), text, pendingIntent);
+		return notification;
+	}
+
+	// In its own class so that API 10 devices never load Notification.Builder
+	private static class NotificationBuilder {
+		@SuppressWarnings("deprecation")
+		static Notification build(Context context, String title, String text, PendingIntent pendingIntent) {
+			Notification.Builder builder = new Notification.Builder(context).setSmallIcon(R.drawable.ic_launcher).setContentTitle(title)
+					.setContentText(text).setTicker(text).setContentIntent(pendingIntent).setOngoing(true).setWhen(System.currentTimeMillis());
+			return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ? builder.build() : builder.getNotification();
+		}
+	}
+
+	/** Publishes the settings stored in the preferences as the new runtime configuration. */
+	public void readSettings() {
+		RuntimeConfig.fromPreferences(this, prefs).commit();
+	}
+
+	private final OnSharedPreferenceChangeListener preferenceListener = new OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			readSettings();
+		}
+	};
+
+	private final RuntimeConfig.Listener configListener = new RuntimeConfig.Listener() {
+		@Override
+		public void onConfigChanged(RuntimeConfig previous, RuntimeConfig config) {
+			if (previous.isControlEnabled != config.isControlEnabled || previous.controlPort != config.controlPort)
+				updateControlServer(config);
+			if (sensorFusion != null)
+				sensorFusion.setMotionEnabled(config.isStreamingMotion);
+		}
+	};
+
+	// Starts, restarts or stops the control server to match the configuration, stops it if config is null
+	private synchronized void updateControlServer(RuntimeConfig config) {
+		boolean enabled = config != null && config.isControlEnabled;
+		if (controlServer != null && (!enabled || controlServer.getPort() != config.controlPort)) {
+			controlServer.close();
+			controlServer = null;
+		}
+		if (enabled && controlServer == null) {
+			controlServer = new ControlServer(this, prefs, config.controlPort);
+			controlServer.start();
+		}
+	}
+
+	public void setTransmitting(boolean transmitting) {
+		if (transmitting == isTransmitting)
+			return;
+		isTransmitting = transmitting;
+
+		if (transmitting) {
+			telemetryHandler.post(openSocketTask);
+			telemetryHandler.post(telemetryTask);
+		} else {
+			telemetryHandler.removeCallbacks(telemetryTask);
+			telemetryHandler.post(closeSocketTask);
+		}
+		CameraPreview cameraPreview = this.cameraPreview;
+		if (cameraPreview != null)
+			cameraPreview.setSendingData(transmitting);
+		updateListeners();
+		updateForeground();
+	}
+
+	public boolean isTransmitting() {
+		return isTransmitting;
+	}
+
+	// Telemetry goes to the IOIO UART instead of UDP while a board is connected
+	public void setIOIOConnected(boolean connected) {
+		isIOIOConnected = connected;
+	}
+
+	private final Runnable openSocketTask = new Runnable() {
+		@Override
+		public void run() {
+			telemetryDue = 0;
+			if (sensorSocket != null)
+				return;
+			try {
+				sensorSocket = new DatagramSocket();
+				sensorSocket.setBroadcast(true);
+			} catch (Exception exception) {
+				Log.e(TAG, "Error: ", exception);
+			}
+			attachVideoSocketTask.run();
+		}
+	};
+
+	// The camera preview sends the video through the telemetry socket, which only the telemetry thread opens and closes
+	private final Runnable attachVideoSocketTask = new Runnable() {
+		@Override
+		public void run() {
+			CameraPreview cameraPreview = SensingService.this.cameraPreview;
+			if (cameraPreview != null)
+				cameraPreview.setSocket(sensorSocket);
+		}
+	};
+
+	private final Runnable closeSocketTask = new Runnable() {
+		@Override
+		public void run() {
+			if (sensorSocket != null) {
+				DatagramSocket socket = sensorSocket;
+				sensorSocket = null;
+				attachVideoSocketTask.run();
+				socket.close();
+			}
+		}
+	};
+
+	private void sendTelemetry(RuntimeConfig config) {
+		if (sensorSocket == null)
+			return;
+
+		PipelineStats.enter(PipelineStats.TELEMETRY_QUEUE);
+		long start = PipelineStats.now();
+		try {
+			for (float value : sensorFusion.getOutputOrientation()) {
+				byteBuffer.putFloat(value);
+			}
+			byte[] data = byteBuffer.array();
+			DatagramPacket packet = new DatagramPacket(data, data.length, config.getHostAddress(), config.sensorPort);
+			sensorSocket.send(packet);
+			PipelineStats.recordSince(PipelineStats.TELEMETRY_SEND, start);
+			PipelineStats.increment(PipelineStats.TELEMETRY_PACKETS);
+
+		} catch (IOException exception) {
+			PipelineStats.increment(PipelineStats.SEND_ERRORS);
+			Log.e(TAG, "Error: ", exception);
+		} finally {
+			byteBuffer.clear();
+			PipelineStats.leave(PipelineStats.TELEMETRY_QUEUE);
+		}
+	}
+
+	// Sends the linear acceleration and velocity to the motion port of the host
+	private void sendMotion(RuntimeConfig config) {
+		if (sensorSocket == null)
+			return;
+
+		try {
+			MotionEstimator motion = sensorFusion.getMotionEstimator();
+			motionBuffer.clear();
+			motion.getLinearAcceleration(motionValues);
+			motionBuffer.putFloat(motionValues[0]).putFloat(motionValues[1]).putFloat(motionValues[2]);
+			motion.getVelocity(motionValues);
+			motionBuffer.putFloat(motionValues[0]).putFloat(motionValues[1]).putFloat(motionValues[2]);
+			byte[] data = motionBuffer.array();
+			DatagramPacket packet = new DatagramPacket(data, data.length, config.getHostAddress(), config.motionPort);
+			sensorSocket.send(packet);
+		} catch (IOException exception) {
+			PipelineStats.increment(PipelineStats.SEND_ERRORS);
+			Log.e(TAG, "Error: ", exception);
+		}
+	}
+
+	// Sends the pipeline statistics to the stats port of the host
+	private void sendStats(RuntimeConfig config) {
+		if (sensorSocket == null)
+			return;
+
+		try {
+			statsBuffer.clear();
+			PipelineStats.writePacket(statsBuffer);
+			byte[] data = statsBuffer.array();
+			DatagramPacket packet = new DatagramPacket(data, statsBuffer.position(), config.getHostAddress(), config.statsPort);
+			sensorSocket.send(packet);
+		} catch (IOException exception) {
+			Log.e(TAG, "Error: ", exception);
+		}
+	}
+
+	/**
+	 * Starts recording the sensor streams to the app external files.
+	 *
+	 * @return true if recording
+	 */
+	public boolean startRecording() {
+		if (sensorFusion.getRecorder() != null)
+			return true;
+		try {
+			File directory = new File(getExternalFilesDir(null), "recordings");
+			sensorFusion.setRecorder(new SensorRecorder(directory));
+		} catch (Exception exception) {
+			Log.e(TAG, "Error: ", exception);
+			return false;
+		}
+		updateListeners();
+		updateForeground();
+		return true;
+	}
+
+	public void stopRecording() {
+		SensorRecorder recorder = sensorFusion.getRecorder();
+		if (recorder == null)
+			return;
+		sensorFusion.setRecorder(null);
+		recorder.close();
+		updateListeners();
+		updateForeground();
+	}
+
+	public boolean isRecording() {
+		return sensorFusion.getRecorder() != null;
+	}
+
+	public SensorFusion getSensorFusion() {
+		return sensorFusion;
+	}
+
+	// The camera preview that streams the video while the service transmits, attached by the activity that shows it and
+	// detached with null
+	public void setCameraPreview(CameraPreview cameraPreview) {
+		CameraPreview previous = this.cameraPreview;
+		if (previous != null && previous != cameraPreview) {
+			previous.setSendingData(false);
+			previous.setSocket(null);
+		}
+		this.cameraPreview = cameraPreview;
+		if (cameraPreview != null) {
+			cameraPreview.setSensorFusion(sensorFusion);
+			cameraPreview.setSendingData(isTransmitting);
+			telemetryHandler.post(attachVideoSocketTask);
+		}
+	}
+
+	// Returns the attached camera preview, null while none streams video
+	public CameraPreview getCameraPreview() {
+		return cameraPreview;
+	}
+}
@@ -45,12 +45,8 @@ public class SensorFusion implements SensorEventListener {
 	// Stores information about all the different sensors
 	private SensorManager mSensorManager = null;
 
-	// angular speeds from gyro
-	private float[] gyro = new float[3];
-	// rotation matrix from gyro data
-	private float[] gyroMatrix = new float[9];
-	// orientation angles from gyro matrix
-	private float[] gyroOrientation = new float[3];
+	// magnitude of the last angular speed sample in rad/s
+	private volatile float angularRate;
 	// magnetic field vector
 	private float[] magnet = new float[3];
 	// accelerometer vector
@@ -61,84 +57,327 @@ public class SensorFusion implements SensorEventListener {
 	private float[] fusedOrientation = new float[3];
 	// accelerometer and magnetometer based rotation matrix
 	private float[] rotationMatrix = new float[9];
+	// rotation matrix remapped to the display orientation
+	private final float[] outputRotationMatrix = new float[9];
+
+	// The accelerometer and magnetometer are smoothed over the last ACC_MAG_WINDOW samples
+	public static final int ACC_MAG_WINDOW = 4;
+	private final MovingAverageFilter accelFilter = new MovingAverageFilter(ACC_MAG_WINDOW);
+	private final MovingAverageFilter magnetFilter = new MovingAverageFilter(ACC_MAG_WINDOW);
+	private final float[] filteredAccel = new float[3];
+	private final float[] filteredMagnet = new float[3];
+	// guards the filters and the accel/mag orientation, written by the sensor callbacks and read by the fusion task
+	private final Object accMagLock = new Object();
+	// set when a new accelerometer or magnetometer sample arrived since the accel/mag orientation was computed
+	private boolean isAccMagDirty;
+	// set once the accelerometer and magnetometer gave an orientation since the sensors were registered
+	private volatile boolean isAccMagValid;
+
+	// coordinate system remapping, cached until the display orientation changes
+	private int remapAxisX = SensorManager.AXIS_Z;
+	private int remapAxisY = SensorManager.AXIS_MINUS_X;
+	// timestamped fused orientations, used to find the orientation at a given time
+	private final OrientationHistory orientationHistory = new OrientationHistory();
+	// Offset from the sensor event clock to System.nanoTime(), the smallest arrival delay seen so far, and the newest
+	// sample on the System.nanoTime() clock. The history is stamped with the sample time, not the fusion time.
+	private long eventClockOffset = Long.MAX_VALUE;
+	private volatile long newestSampleNanos;
+	// Orientation at the time of an accelerometer sample, read from the history on the sensor thread
+	private final float[] motionOrientation = new float[3];
 
 	//public String azimut;
 	public String pitch;
 	public String roll;
 	public String coefficient;
 
-	public static final float EPSILON = 0.000000001f;
-	private static final float NS2S = 1.0f / 1000000000.0f;
-	private float timestamp;
-	private boolean initState = true;
-
-	public static final int TIME_CONSTANT = 30;
-	public float FILTER_COEFFICIENT = 0.90f;
-	public float tempFilter_coefficient = FILTER_COEFFICIENT;
-	private Timer fuseTimer = new Timer();
-
-	public Handler mHandler = new Handler();
-
-	public static int IMUOutputSelection = -1;
+	// Computes the fused orientation, chosen by initListeners or setOutputSelection
+	private final ComplementaryFilterBackend complementaryBackend = new ComplementaryFilterBackend(this);
+	private RotationVectorBackend rotationVectorBackend;
+	private volatile FusionBackend backend = complementaryBackend;
+	// The rotation vector sensors are fused outside the app, a high rate only costs their delivery
+	public static final int ROTATION_VECTOR_SENSOR_DELAY = SensorManager.SENSOR_DELAY_GAME;
+	// Arrival of the newest backend sample not yet fused, and its age when the orientation is published. Only measured
+	// while PipelineStats is enabled or a benchmark asks for it.
+	private volatile long backendSampleNanos;
+	private final LatencyHistogram outputLatency = new LatencyHistogram();
+	private volatile boolean isOutputLatencyEnabled;
+
+	// The filter coefficient and the fusion period come from the RuntimeConfig
+	public float tempFilter_coefficient = RuntimeConfig.DEFAULT_FILTER_COEFFICIENT;
+	private Timer fuseTimer;
+	private TimerTask fuseTask;
+
+	// Low-power profile used while the device is stationary: slower fusion ticks and accelerometer/magnetometer rates.
+	// The gyroscope keeps its rate so that motion is noticed at once.
+	public static final int LOW_POWER_TIME_CONSTANT = 200;
+	public static final int LOW_POWER_SENSOR_DELAY = 500000; // us
+	private final StationaryDetector stationaryDetector = new StationaryDetector();
+	private volatile boolean isLowPowerEnabled = true;
+	private volatile boolean isLowPower;
+	private boolean isListening;
+
+	// Linear acceleration and velocity, estimated from every accelerometer sample while enabled
+	private final MotionEstimator motionEstimator = new MotionEstimator();
+	private volatile boolean isMotionEnabled;
+
+	public Handler mHandler;
+
+	// optional on-device recording of the raw and fused samples
+	private volatile SensorRecorder recorder;
+	// Timestamp of the newest raw sample while recording, fused records use it to stay on the sensor event clock
+	private volatile long recordedEventTimestamp;
+
+	// instrumentation: arrival of the oldest sample not yet fused, and time of the last display post
+	private volatile long pendingSampleNanos;
+	private volatile long postNanos;
+
+	// 0 for the accelerometer/magnetometer orientation, 1 for the rotation vector sensor, 2 for the complementary filter
+	public volatile int IMUOutputSelection = -1;
+	// Names of the outputs, by IMUOutputSelection, used by the control channel and the preferences
+	public static final String[] OUTPUT_NAMES = { "accmag", "rotation_vector", "fused" };
+	// Output chosen remotely, -1 to follow the sensors
+	private volatile int requestedOutput = -1;
+	private boolean hasGyroscope = true;
 	DecimalFormat df = (DecimalFormat) NumberFormat.getNumberInstance(Locale.ENGLISH);
 
 	public SensorFusion(SensorManager manager) {
-		mSensorManager = manager;
-
-		/* Init gyro values */
-		gyroOrientation[0] = 0.0f;
-		gyroOrientation[1] = 0.0f;
-		gyroOrientation[2] = 0.0f;
-
-		// Initialize gyroMatrix with identity matrix
-		gyroMatrix[0] = 1.0f;
-		gyroMatrix[1] = 0.0f;
-		gyroMatrix[2] = 0.0f;
-		gyroMatrix[3] = 0.0f;
-		gyroMatrix[4] = 1.0f;
-		gyroMatrix[5] = 0.0f;
-		gyroMatrix[6] = 0.0f;
-		gyroMatrix[7] = 0.0f;
-		gyroMatrix[8] = 1.0f;
+		this(manager, -1);
+	}
 
+	// Creates a fusion with the given output, -1 to choose by the sensors of the device
+	public SensorFusion(SensorManager manager, int output) {
+		this();
+		mSensorManager = manager;
+		mHandler = new Handler();
+		hasGyroscope = manager.getDefaultSensor(Sensor.TYPE_GYROSCOPE) != null;
+		rotationVectorBackend = RotationVectorBackend.create(manager);
+		requestedOutput = output;
+
+		// The fusion task is scheduled by the first valid accelerometer/magnetometer orientation
+		fuseTimer = new Timer();
+		RuntimeConfig.addListener(configListener);
 		initListeners();
+	}
 
-		// Wait for one second until gyroscope and magnetometer/accelerometer
-		// Data is initialized then schedule the complementary filter task
-		fuseTimer.scheduleAtFixedRate(new calculateFusedOrientationTask(),1000, TIME_CONSTANT);
+	// Creates a fusion that is not attached to the sensors, samples are fed with onSensorSample and fuseOrientation
+	public SensorFusion() {
+		// Replayed rotation vectors are read as TYPE_ROTATION_VECTOR
+		rotationVectorBackend = new RotationVectorBackend(Sensor.TYPE_ROTATION_VECTOR);
+		motionEstimator.setCoordinateRemap(remapAxisX, remapAxisY);
 
 		// GUI stuff
 		df.setRoundingMode(RoundingMode.HALF_UP);
 		df.setMaximumFractionDigits(2);
 		df.setMinimumFractionDigits(2);
+
+		stationaryDetector.setListener(new StationaryDetector.Listener() {
+			@Override
+			public void onStationaryChanged(boolean isStationary) {
+				setLowPower(isStationary && isLowPowerEnabled);
+			}
+		});
 	}
 
-	// This function registers sensor listeners for the accelerometer, magnetometer and gyroscope.
+	// This function registers sensor listeners for the accelerometer, magnetometer and gyroscope,
+	// and the rotation vector sensor when it computes the orientation.
 	public void initListeners() {
+		isListening = true;
+		selectOutput();
+		// The accelerometer and magnetometer slow down in the low-power profile
+		int accMagDelay = isLowPower ? LOW_POWER_SENSOR_DELAY : SensorManager.SENSOR_DELAY_NORMAL;
 		if (mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null)
-			mSensorManager.registerListener(this,mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),SensorManager.SENSOR_DELAY_NORMAL);
+			mSensorManager.registerListener(this,mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),getAccelDelay());
 		else {
 			if (D)
 				Log.i(TAG, "Accelerometer not supported");
 		}
 		if (mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE) != null) {
 			mSensorManager.registerListener(this,mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE),SensorManager.SENSOR_DELAY_NORMAL);
-			IMUOutputSelection = 2;
 		} else {
 			if (D)
 				Log.i(TAG, "Gyroscope not supported");
-			IMUOutputSelection = 0;
 		}
 		if (mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD) != null)
-			mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD),SensorManager.SENSOR_DELAY_NORMAL);
+			mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD),accMagDelay);
 		else {
 			if (D)
 				Log.i(TAG, "Magnetic Field sensor not supported");
 		}
+		if (backend == rotationVectorBackend) {
+			for (int type : rotationVectorBackend.getSensorTypes()) {
+				mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(type), ROTATION_VECTOR_SENSOR_DELAY);
+			}
+		}
 	}
 
 	public void unregisterListeners() {
-		mSensorManager.unregisterListener(this);
+		if (mSensorManager != null)
+			mSensorManager.unregisterListener(this);
+		isListening = false;
+		stationaryDetector.reset();
+		backend.reset();
+		motionEstimator.reset();
+
+		// Start again from fresh samples, without fusing meanwhile
+		synchronized (accMagLock) {
+			accelFilter.reset();
+			magnetFilter.reset();
+			isAccMagValid = false;
+		}
+		scheduleFusion(0);
+	}
+
+	// The accelerometer runs faster while the motion is estimated, the velocity integrates it
+	private int getAccelDelay() {
+		if (isLowPower)
+			return LOW_POWER_SENSOR_DELAY;
+		return isMotionEnabled ? SensorManager.SENSOR_DELAY_GAME : SensorManager.SENSOR_DELAY_NORMAL;
+	}
+
+	// Enables the linear acceleration and velocity estimate, see getMotionEstimator
+	public synchronized void setMotionEnabled(boolean enabled) {
+		if (enabled == isMotionEnabled)
+			return;
+		isMotionEnabled = enabled;
+		motionEstimator.reset();
+		if (mSensorManager != null && isListening) {
+			Sensor accelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+			if (accelerometer != null) {
+				mSensorManager.unregisterListener(this, accelerometer);
+				mSensorManager.registerListener(this, accelerometer, getAccelDelay());
+			}
+		}
+	}
+
+	public boolean isMotionEnabled() {
+		return isMotionEnabled;
+	}
+
+	public MotionEstimator getMotionEstimator() {
+		return motionEstimator;
+	}
+
+	// Uses the requested output if the device supports it, otherwise the rotation vector sensor, then the
+	// complementary filter, then the accelerometer and magnetometer alone
+	private void selectOutput() {
+		int output = requestedOutput;
+		if (output < 0 || !isSupported(output))
+			output = (rotationVectorBackend != null) ? 1 : hasGyroscope ? 2 : 0;
+
+		// The accelerometer/magnetometer output still fuses in the background, for the orientation history
+		FusionBackend selected;
+		if (output == 1 || (output == 0 && rotationVectorBackend != null))
+			selected = rotationVectorBackend;
+		else
+			selected = complementaryBackend;
+		if (selected != backend) {
+			selected.reset();
+			backend = selected;
+		}
+		IMUOutputSelection = output;
+		if (D)
+			Log.i(TAG, "Output " + output + ", fusion " + selected.getName());
+	}
+
+	private boolean isSupported(int output) {
+		switch (output) {
+		case 0:
+			return true;
+		case 1:
+			return rotationVectorBackend != null;
+		case 2:
+			return hasGyroscope;
+		}
+		return false;
+	}
+
+	// Stops the fusion timer, the fusion cannot be used afterwards
+	public void release() {
+		RuntimeConfig.removeListener(configListener);
+		if (fuseTimer != null)
+			fuseTimer.cancel();
+	}
+
+	// A new fusion period applies at once, without touching the sensors
+	private final RuntimeConfig.Listener configListener = new RuntimeConfig.Listener() {
+		@Override
+		public void onConfigChanged(RuntimeConfig previous, RuntimeConfig config) {
+			if (previous.fusionPeriod != config.fusionPeriod)
+				scheduleFusion(0);
+		}
+	};
+
+	// (Re)schedules the fusion task at the period of the current profile, or stops it until the
+	// accelerometer/magnetometer orientation is valid
+	private synchronized void scheduleFusion(long delay) {
+		if (fuseTask != null)
+			fuseTask.cancel();
+		fuseTask = null;
+		if (fuseTimer == null || !isAccMagValid)
+			return;
+		int period = RuntimeConfig.get().fusionPeriod;
+		if (isLowPower)
+			period = Math.max(period, LOW_POWER_TIME_CONSTANT);
+		fuseTask = new calculateFusedOrientationTask();
+		fuseTimer.scheduleAtFixedRate(fuseTask, delay, period);
+	}
+
+	// Allows switching to the low-power profile while the device is stationary
+	public void setLowPowerEnabled(boolean enabled) {
+		isLowPowerEnabled = enabled;
+		if (!enabled)
+			setLowPower(false);
+		else if (stationaryDetector.isStationary())
+			setLowPower(true);
+	}
+
+	public boolean isLowPowerEnabled() {
+		return isLowPowerEnabled;
+	}
+
+	public boolean isLowPower() {
+		return isLowPower;
+	}
+
+	public StationaryDetector getStationaryDetector() {
+		return stationaryDetector;
+	}
+
+	// Switches between the full-rate and the low-power profiles, called on the sensor thread
+	private void setLowPower(boolean lowPower) {
+		if (lowPower == isLowPower)
+			return;
+		isLowPower = lowPower;
+		if (D)
+			Log.i(TAG, lowPower ? "Stationary, entering low power" : "Moving, leaving low power");
+		if (lowPower)
+			PipelineStats.increment(PipelineStats.LOW_POWER_ENTRIES);
+
+		if (mSensorManager != null && isListening) {
+			int accMagDelay = lowPower ? LOW_POWER_SENSOR_DELAY : SensorManager.SENSOR_DELAY_NORMAL;
+			Sensor accelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+			if (accelerometer != null) {
+				mSensorManager.unregisterListener(this, accelerometer);
+				mSensorManager.registerListener(this, accelerometer, getAccelDelay());
+			}
+			Sensor magnetometer = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+			if (magnetometer != null) {
+				mSensorManager.unregisterListener(this, magnetometer);
+				mSensorManager.registerListener(this, magnetometer, accMagDelay);
+			}
+		}
+
+		// Reschedule the fusion task, at once when leaving low power
+		scheduleFusion(0);
+	}
+
+	// Records every raw sample and fused output to the given recorder, null to stop recording
+	public void setRecorder(SensorRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public SensorRecorder getRecorder() {
+		return recorder;
 	}
 	
 	@Override
@@ -147,229 +386,166 @@ public class SensorFusion implements SensorEventListener {
 
 	@Override
 	public void onSensorChanged(SensorEvent event) {
-		switch (event.sensor.getType()) {
+		onSensorSample(event.sensor.getType(), event.timestamp, event.values);
+	}
+
+	// Processes one sensor sample, either live from onSensorChanged or replayed from a recording
+	public void onSensorSample(int type, long eventTimestamp, float[] values) {
+		PipelineStats.increment(PipelineStats.SENSOR_EVENTS);
+		if (pendingSampleNanos == 0)
+			pendingSampleNanos = PipelineStats.now();
+
+		// Batched or late deliveries only make the offset larger, the smallest one is the closest to the real one
+		long offset = System.nanoTime() - eventTimestamp;
+		if (offset < eventClockOffset)
+			eventClockOffset = offset;
+		newestSampleNanos = eventTimestamp + eventClockOffset;
+
+		SensorRecorder recorder = this.recorder;
+		if (recorder != null) {
+			recordedEventTimestamp = eventTimestamp;
+			recorder.record(type, eventTimestamp, values);
+		}
+
+		FusionBackend backend = this.backend;
+		if (PipelineStats.enabled || isOutputLatencyEnabled) {
+			for (int backendType : backend.getSensorTypes()) {
+				if (type == backendType)
+					backendSampleNanos = System.nanoTime();
+			}
+		}
+
+		switch (type) {
 		case Sensor.TYPE_ACCELEROMETER:
-			// Copy new accelerometer data into accel array and calculate orientation
-			System.arraycopy(event.values, 0, accel, 0, 3);
-			calculateOrientation();
+			// Copy new accelerometer data into accel array, the orientation is calculated when it is needed
+			System.arraycopy(values, 0, accel, 0, 3);
+			synchronized (accMagLock) {
+				accelFilter.add(values);
+				isAccMagDirty = true;
+			}
+			stationaryDetector.addAccel(eventTimestamp, values);
+			// fusedOrientation is written by the fusion thread, the history gives a consistent copy
+			if (isMotionEnabled && orientationHistory.interpolate(newestSampleNanos, motionOrientation))
+				motionEstimator.update(eventTimestamp, values, motionOrientation, stationaryDetector.isStationary());
 			break;
 
 		case Sensor.TYPE_GYROSCOPE:
 			// Process gyro data
-			gyroFunction(event);
+			angularRate = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+			stationaryDetector.addGyro(eventTimestamp, values);
 			break;
 
 		case Sensor.TYPE_MAGNETIC_FIELD:
 			// Copy new magnetometer data into magnet array
-			System.arraycopy(event.values, 0, magnet, 0, 3);
+			System.arraycopy(values, 0, magnet, 0, 3);
+			synchronized (accMagLock) {
+				magnetFilter.add(values);
+				isAccMagDirty = true;
+			}
 			break;
 		}
+		if (!isAccMagValid && fuseTimer != null && (type == Sensor.TYPE_ACCELEROMETER || type == Sensor.TYPE_MAGNETIC_FIELD))
+			startFusionWhenValid();
+		backend.onSensorSample(type, eventTimestamp, values);
 	}
 
-	// Calculates orientation angles from accelerometer and magnetometer output
+	// Calculates orientation angles from the smoothed accelerometer and magnetometer output.
+	// Does nothing unless a new sample arrived since the last call.
 	public void calculateOrientation() {
-		if (SensorManager.getRotationMatrix(rotationMatrix, null, accel, magnet)) {
-			float[] outputRotationMatrix = new float[9];
-			
-			if (SensingActivity.isLandscape) {
-				// Landscape
-				SensorManager.remapCoordinateSystem(rotationMatrix, SensorManager.AXIS_Z, SensorManager.AXIS_MINUS_X, outputRotationMatrix);
-			} else {
-				// Portrait
-				SensorManager.remapCoordinateSystem(rotationMatrix, SensorManager.AXIS_X, SensorManager.AXIS_Z, outputRotationMatrix);
+		synchronized (accMagLock) {
+			if (!isAccMagDirty || !accelFilter.getAverage(filteredAccel) || !magnetFilter.getAverage(filteredMagnet))
+				return;
+			isAccMagDirty = false;
+
+			if (SensorManager.getRotationMatrix(rotationMatrix, null, filteredAccel, filteredMagnet)) {
+				SensorManager.remapCoordinateSystem(rotationMatrix, remapAxisX, remapAxisY, outputRotationMatrix);
+				SensorManager.getOrientation(outputRotationMatrix, accMagOrientation);
+				isAccMagValid = true;
 			}
-			SensorManager.getOrientation(outputRotationMatrix, accMagOrientation);
-			
-//			SensorManager.getOrientation(rotationMatrix, accMagOrientation);
 		}
 	}
 
-	// This function is borrowed from the Android reference at
-	// http://developer.android.com/reference/android/hardware/SensorEvent.html#values
-	// It calculates a rotation vector from the gyroscope angular speed values.
-	private void getRotationVectorFromGyro(float[] gyroValues, float[] deltaRotationVector, float timeFactor) {
-		float[] normValues = new float[3];
+	// True once the accelerometer/magnetometer orientation has been computed from real samples
+	public boolean isAccMagValid() {
+		return isAccMagValid;
+	}
 
-		// Calculate the angular speed of the sample
-		float omegaMagnitude = (float)Math.sqrt(gyroValues[0] * gyroValues[0] + gyroValues[1] * gyroValues[1] + gyroValues[2] * gyroValues[2]);
+	// Starts the fusion task as soon as the first accelerometer/magnetometer orientation exists
+	private void startFusionWhenValid() {
+		calculateOrientation();
+		if (!isAccMagValid)
+			return;
+		StartupMetrics.mark(StartupMetrics.FIRST_VALID_SAMPLE);
+		scheduleFusion(0);
+	}
 
-		// Normalize the rotation vector if it's big enough to get the axis
-		if (omegaMagnitude > EPSILON) {
-			normValues[0] = gyroValues[0] / omegaMagnitude;
-			normValues[1] = gyroValues[1] / omegaMagnitude;
-			normValues[2] = gyroValues[2] / omegaMagnitude;
+	// Selects the coordinate system remapping for a landscape or portrait display
+	public void setLandscape(boolean isLandscape) {
+		synchronized (accMagLock) {
+			if (isLandscape) {
+				remapAxisX = SensorManager.AXIS_Z;
+				remapAxisY = SensorManager.AXIS_MINUS_X;
+			} else {
+				remapAxisX = SensorManager.AXIS_X;
+				remapAxisY = SensorManager.AXIS_Z;
+			}
+			isAccMagDirty = true;
+			complementaryBackend.setCoordinateRemap(remapAxisX, remapAxisY);
+			if (rotationVectorBackend != null)
+				rotationVectorBackend.setCoordinateRemap(remapAxisX, remapAxisY);
+			motionEstimator.setCoordinateRemap(remapAxisX, remapAxisY);
 		}
+	}
 
-		// Integrate around this axis with the angular speed by the timestep
-		// in order to get a delta rotation from this sample over the timestep
-		// We will convert this axis-angle representation of the delta rotation
-		// into a quaternion before turning it into the rotation matrix.
-		float thetaOverTwo = omegaMagnitude * timeFactor;
-		float sinThetaOverTwo = (float)Math.sin(thetaOverTwo);
-		float cosThetaOverTwo = (float)Math.cos(thetaOverTwo);
-		deltaRotationVector[0] = sinThetaOverTwo * normValues[0];
-		deltaRotationVector[1] = sinThetaOverTwo * normValues[1];
-		deltaRotationVector[2] = sinThetaOverTwo * normValues[2];
-		deltaRotationVector[3] = cosThetaOverTwo;
-	}
-
-	// This function performs the integration of the gyroscope data.
-	// It writes the gyroscope based orientation into gyroOrientation.
-	public void gyroFunction(SensorEvent event) {
-		// Don't start until first accelerometer/magnetometer orientation has been acquired
-		if (accMagOrientation == null)
-			return;
+	// Returns the orientation from the accelerometer and magnetometer, updated by calculateOrientation
+	public float[] getAccMagOrientation() {
+		return accMagOrientation;
+	}
 
-		// Initialization of the gyroscope based rotation matrix
-		if (initState) {
-			float[] initMatrix = new float[9];
-			initMatrix = getRotationMatrixFromOrientation(accMagOrientation);
-			float[] test = new float[3];
-			SensorManager.getOrientation(initMatrix, test);
-			gyroMatrix = matrixMultiplication(gyroMatrix, initMatrix);
-			initState = false;
+	class calculateFusedOrientationTask extends TimerTask {
+		public void run() {
+			fuseOrientation();
 		}
+	}
 
-		// Copy the new gyro values into the gyro array
-		// Convert the raw gyro data into a rotation vector
-		float[] deltaVector = new float[4];
-		if (timestamp != 0) {
-			final float dT = (event.timestamp - timestamp) * NS2S;
-			System.arraycopy(event.values, 0, gyro, 0, 3);
-			getRotationVectorFromGyro(gyro, deltaVector, dT / 2.0f);
+	// Runs one step of the fusion backend, called by the fusion timer or when replaying a recording
+	public void fuseOrientation() {
+		long start = PipelineStats.now();
+		calculateOrientation();
+
+		tempFilter_coefficient = RuntimeConfig.get().filterCoefficient;
+
+		// Without an orientation from the backend yet, publish the accelerometer/magnetometer one
+		boolean isFused = backend.fuse(accMagOrientation, fusedOrientation);
+		if (!isFused)
+			System.arraycopy(accMagOrientation, 0, fusedOrientation, 0, 3);
+		else
+			StartupMetrics.mark(StartupMetrics.FIRST_FUSION);
+
+		long now = System.nanoTime();
+		long sampleNanos = newestSampleNanos;
+		orientationHistory.add((sampleNanos != 0) ? sampleNanos : now, fusedOrientation);
+		long sample = backendSampleNanos;
+		if (isFused && sample != 0) {
+			backendSampleNanos = 0;
+			outputLatency.record(now - sample);
 		}
 
-		// Measurement done, save current time for next interval
-		timestamp = event.timestamp;
-
-		// Convert rotation vector into rotation matrix
-		float[] deltaMatrix = new float[9];
-		SensorManager.getRotationMatrixFromVector(deltaMatrix, deltaVector);
-
-		// Apply the new rotation interval on the gyroscope based rotation matrix
-		gyroMatrix = matrixMultiplication(gyroMatrix, deltaMatrix);
-
-		// Get the gyroscope based orientation from the rotation matrix
-		SensorManager.getOrientation(gyroMatrix, gyroOrientation);
-	}
-
-	private float[] getRotationMatrixFromOrientation(float[] o) {
-		float[] xM = new float[9];
-		float[] yM = new float[9];
-		float[] zM = new float[9];
-
-		float sinX = (float)Math.sin(o[1]);
-		float cosX = (float)Math.cos(o[1]);
-		float sinY = (float)Math.sin(o[2]);
-		float cosY = (float)Math.cos(o[2]);
-		float sinZ = (float)Math.sin(o[0]);
-		float cosZ = (float)Math.cos(o[0]);
-
-		// Rotation about x-axis (pitch)
-		xM[0] = 1.0f;
-		xM[1] = 0.0f;
-		xM[2] = 0.0f;
-		xM[3] = 0.0f;
-		xM[4] = cosX;
-		xM[5] = sinX;
-		xM[6] = 0.0f;
-		xM[7] = -sinX;
-		xM[8] = cosX;
-
-		// Rotation about y-axis (roll)
-		yM[0] = cosY;
-		yM[1] = 0.0f;
-		yM[2] = sinY;
-		yM[3] = 0.0f;
-		yM[4] = 1.0f;
-		yM[5] = 0.0f;
-		yM[6] = -sinY;
-		yM[7] = 0.0f;
-		yM[8] = cosY;
-
-		// Rotation about z-axis (azimuth)
-		zM[0] = cosZ;
-		zM[1] = sinZ;
-		zM[2] = 0.0f;
-		zM[3] = -sinZ;
-		zM[4] = cosZ;
-		zM[5] = 0.0f;
-		zM[6] = 0.0f;
-		zM[7] = 0.0f;
-		zM[8] = 1.0f;
-
-		// Rotation order is y, x, z (roll, pitch, azimuth)
-		float[] resultMatrix = matrixMultiplication(xM, yM);
-		resultMatrix = matrixMultiplication(zM, resultMatrix);
-		return resultMatrix;
-	}
-
-	private float[] matrixMultiplication(float[] A, float[] B) {
-		float[] result = new float[9];
-
-		result[0] = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
-		result[1] = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
-		result[2] = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
-
-		result[3] = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
-		result[4] = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
-		result[5] = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
-
-		result[6] = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
-		result[7] = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
-		result[8] = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
-
-		return result;
-	}
+		SensorRecorder recorder = this.recorder;
+		if (recorder != null)
+			recorder.record(SensorRecorder.TYPE_FUSED, recordedEventTimestamp, fusedOrientation);
 
-	class calculateFusedOrientationTask extends TimerTask {
-		public void run() {
-			float oneMinusCoeff = 1.0f - FILTER_COEFFICIENT;
-
-			/*
-			 * Fix for 179 <--> -179 transition problem: Check whether one of
-			 * the two orientation angles (gyro or accMag) is negative while the
-			 * other one is positive. If so, add 360 (2 * math.PI) to the
-			 * negative value, perform the sensor fusion, and remove the 360
-			 * from the result if it is greater than 180. This stabilizes the
-			 * output in positive-to-negative-transition cases.
-			 */
-
-			// Azimuth
-			if (gyroOrientation[0] < -0.5 * Math.PI && accMagOrientation[0] > 0.0) {
-				fusedOrientation[0] = (float) (FILTER_COEFFICIENT * (gyroOrientation[0] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[0]);
-				fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
-			} else if (accMagOrientation[0] < -0.5 * Math.PI && gyroOrientation[0] > 0.0) {
-				fusedOrientation[0] = (float) (FILTER_COEFFICIENT * gyroOrientation[0] + oneMinusCoeff * (accMagOrientation[0] + 2.0 * Math.PI));
-				fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI : 0;
-			} else
-				fusedOrientation[0] = FILTER_COEFFICIENT * gyroOrientation[0] + oneMinusCoeff * accMagOrientation[0];
-
-			// Pitch
-			if (gyroOrientation[1] < -0.5 * Math.PI && accMagOrientation[1] > 0.0) {
-				fusedOrientation[1] = (float) (FILTER_COEFFICIENT * (gyroOrientation[1] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[1]);
-				fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
-			} else if (accMagOrientation[1] < -0.5 * Math.PI && gyroOrientation[1] > 0.0) {
-				fusedOrientation[1] = (float) (FILTER_COEFFICIENT * gyroOrientation[1] + oneMinusCoeff * (accMagOrientation[1] + 2.0 * Math.PI));
-				fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI : 0;
-			} else
-				fusedOrientation[1] = FILTER_COEFFICIENT * gyroOrientation[1] + oneMinusCoeff * accMagOrientation[1];
-
-			// Roll
-			if (gyroOrientation[2] < -0.5 * Math.PI && accMagOrientation[2] > 0.0) {
-				fusedOrientation[2] = (float) (FILTER_COEFFICIENT * (gyroOrientation[2] + 2.0 * Math.PI) + oneMinusCoeff * accMagOrientation[2]);
-				fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
-			} else if (accMagOrientation[2] < -0.5 * Math.PI && gyroOrientation[2] > 0.0) {
-				fusedOrientation[2] = (float) (FILTER_COEFFICIENT * gyroOrientation[2] + oneMinusCoeff * (accMagOrientation[2] + 2.0 * Math.PI));
-				fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI : 0;
-			} else
-				fusedOrientation[2] = FILTER_COEFFICIENT * gyroOrientation[2] + oneMinusCoeff * accMagOrientation[2];
-
-			// Overwrite gyro matrix and orientation with fused orientation to compensate gyro drift
-			gyroMatrix = getRotationMatrixFromOrientation(fusedOrientation);
-			System.arraycopy(fusedOrientation, 0, gyroOrientation, 0, 3);
-
-			// Update sensor output in GUI
+		long pending = pendingSampleNanos;
+		if (pending != 0) {
+			pendingSampleNanos = 0;
+			PipelineStats.recordSince(PipelineStats.SENSOR_TO_FUSION, pending);
+		}
+		PipelineStats.recordSince(PipelineStats.FUSION, start);
+		PipelineStats.increment(PipelineStats.FUSION_TICKS);
+
+		// Update sensor output in GUI
+		if (mHandler != null) {
+			postNanos = PipelineStats.now();
 			mHandler.post(updateOreintationDisplayTask);
 		}
 	}
@@ -380,11 +556,7 @@ public class SensorFusion implements SensorEventListener {
 			pitch = df.format(accMagOrientation[1] * 180 / Math.PI);
 			roll = df.format(accMagOrientation[2] * 180 / Math.PI);
 			break;
-		/*case 1:
-			mAzimuthView.setText(df.format(gyroOrientation[0] * 180 / Math.PI));
-			mPitchView.setText(df.format(gyroOrientation[1] * 180 / Math.PI));
-			mRollView.setText(df.format(gyroOrientation[2] * 180 / Math.PI));
-			break;*/
+		case 1:
 		case 2:
 			pitch = df.format(fusedOrientation[1] * 180 / Math.PI);
 			roll = df.format(fusedOrientation[2] * 180 / Math.PI);
@@ -397,9 +569,71 @@ public class SensorFusion implements SensorEventListener {
 		return fusedOrientation;
 	}
 
+	/**
+	 * Selects the orientation that is displayed and sent: 0 for the accelerometer/magnetometer orientation, 1 for the
+	 * rotation vector sensor, 2 for the complementary filter. The sensors are registered again if they change.
+	 *
+	 * @return false if the output is not supported by the sensors of the device
+	 */
+	public synchronized boolean setOutputSelection(int output) {
+		if (!isSupported(output))
+			return false;
+		requestedOutput = output;
+		if (isListening) {
+			unregisterListeners();
+			initListeners();
+		} else {
+			selectOutput();
+		}
+		return true;
+	}
+
+	// Returns the output with the given name in OUTPUT_NAMES, -1 if there is none
+	public static int getOutputByName(String name) {
+		for (int i = 0; i < OUTPUT_NAMES.length; i++) {
+			if (OUTPUT_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
+	// Returns the backend that computes the fused orientation
+	public FusionBackend getBackend() {
+		return backend;
+	}
+
+	// Measures the output latency even while PipelineStats is disabled
+	public void setOutputLatencyEnabled(boolean enabled) {
+		isOutputLatencyEnabled = enabled;
+		if (!enabled)
+			backendSampleNanos = 0;
+	}
+
+	// Returns the age of the newest backend sample when the fused orientation is published
+	public LatencyHistogram getOutputLatency() {
+		return outputLatency;
+	}
+
+	// Returns the orientation selected by IMUOutputSelection
+	public float[] getOutputOrientation() {
+		return (IMUOutputSelection == 0) ? accMagOrientation : fusedOrientation;
+	}
+
+	// Returns the history of fused orientations, timestamped with the time of their newest sample on the System.nanoTime()
+	// clock
+	public OrientationHistory getOrientationHistory() {
+		return orientationHistory;
+	}
+
+	// Returns the magnitude of the last gyroscope sample in rad/s
+	public float getAngularRate() {
+		return angularRate;
+	}
+
 	private Runnable updateOreintationDisplayTask = new Runnable() {
 		@Override
 		public void run() {
+			PipelineStats.recordSince(PipelineStats.HANDLER_POST, postNanos);
 			updateOreintationDisplay();
 		}
 	};
@@ -0,0 +1,96 @@
+package gov.nasa.arc.sensing;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the logs written by {@link SensorRecorder} and feeds them back, either to a {@link Listener} or through a
+ * {@link SensorFusion} pipeline. Raw and fused records share the sensor event clock, see {@link SensorRecorder}.
+ */
+public class SensorLogReader {
+
+	public interface Listener {
+		void onRecord(int type, long timestamp, float x, float y, float z);
+	}
+
+	private SensorLogReader() {
+	}
+
+	/** Returns the logs of a directory in recording order. */
+	public static File[] listLogs(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(SensorRecorder.FILE_PREFIX) && name.endsWith(SensorRecorder.FILE_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		// Names hold the session time and the roll index, so the natural order is the recording order
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Reads every record of a log.
+	 *
+	 * @return the number of records read
+	 */
+	public static long read(File log, Listener listener) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(log, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < SensorRecorder.HEADER_SIZE || buffer.getInt() != SensorRecorder.MAGIC)
+				throw new IOException(log + " is not a sensor log");
+			int version = buffer.getInt();
+			if (version != SensorRecorder.VERSION)
+				throw new IOException(log + " has unsupported version " + version);
+
+			long count = 0;
+			while (buffer.remaining() >= SensorRecorder.RECORD_SIZE) {
+				long timestamp = buffer.getLong();
+				int type = buffer.getInt();
+				float x = buffer.getFloat();
+				float y = buffer.getFloat();
+				float z = buffer.getFloat();
+				if (type == 0)
+					break;
+				listener.onRecord(type, timestamp, x, y, z);
+				count++;
+			}
+			return count;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Replays a log through a fusion pipeline. Raw samples are fed as sensor samples and each recorded fused output
+	 * triggers a fusion step, so the filter runs at the same points of the stream as when it was recorded.
+	 */
+	public static long replay(File log, final SensorFusion fusion) throws IOException {
+		final float[] values = new float[3];
+		return read(log, new Listener() {
+			@Override
+			public void onRecord(int type, long timestamp, float x, float y, float z) {
+				if (type == SensorRecorder.TYPE_FUSED) {
+					fusion.fuseOrientation();
+				} else {
+					values[0] = x;
+					values[1] = y;
+					values[2] = z;
+					fusion.onSensorSample(type, timestamp, values);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,143 @@
+package gov.nasa.arc.sensing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * Appends raw sensor samples and fused orientations to compact binary logs through a memory mapped file, so that a
+ * sample costs a few buffer writes and no system call. Logs are rolled when they reach their size.
+ *
+ * Each log starts with a {@link #HEADER_SIZE} byte header (magic, version) followed by {@link #RECORD_SIZE} byte
+ * records: timestamp (long, ns), type (int, a Sensor.TYPE_ or {@link #TYPE_FUSED}) and three float values. Logs are
+ * little endian. The unused end of a log is zero filled, a record of type 0 marks the end of the data.
+ *
+ * All timestamps are on the sensor event clock (SensorEvent.timestamp). A fused record carries the timestamp of the
+ * newest raw sample recorded before it was computed, not the time of the fusion tick.
+ */
+public class SensorRecorder {
+	private static final String TAG = "SensorRecorder";
+
+	public static final int MAGIC = 0x53454e53; // "SENS"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 8;
+	public static final int RECORD_SIZE = 24;
+
+	// Fused azimuth, pitch and roll from SensorFusion, stamped with the newest raw sample's timestamp
+	public static final int TYPE_FUSED = -1;
+
+	public static final int DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+	public static final String FILE_PREFIX = "sensing-";
+	public static final String FILE_SUFFIX = ".bin";
+
+	private final File directory;
+	private final int fileSize;
+	private final String session;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int fileIndex;
+	private long records;
+	private long errors;
+
+	public SensorRecorder(File directory) throws IOException {
+		this(directory, DEFAULT_FILE_SIZE);
+	}
+
+	public SensorRecorder(File directory, int fileSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		this.directory = directory;
+		this.fileSize = HEADER_SIZE + ((fileSize - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE;
+		this.session = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ENGLISH).format(new Date());
+		roll();
+	}
+
+	public void record(int type, long timestamp, float[] values) {
+		record(type, timestamp, values[0], values[1], values[2]);
+	}
+
+	public synchronized void record(int type, long timestamp, float x, float y, float z) {
+		MappedByteBuffer buffer = this.buffer;
+		if (buffer == null)
+			return;
+		if (buffer.remaining() < RECORD_SIZE) {
+			try {
+				roll();
+			} catch (IOException e) {
+				errors++;
+				Log.e(TAG, "Error: ", e);
+				close();
+				return;
+			}
+			buffer = this.buffer;
+		}
+		buffer.putLong(timestamp);
+		buffer.putInt(type);
+		buffer.putFloat(x);
+		buffer.putFloat(y);
+		buffer.putFloat(z);
+		records++;
+	}
+
+	// Closes the current log and maps the next one
+	private void roll() throws IOException {
+		closeFile();
+
+		File next = new File(directory, String.format(Locale.ENGLISH, "%s%s-%03d%s", FILE_PREFIX, session, fileIndex++, FILE_SUFFIX));
+		file = new RandomAccessFile(next, "rw");
+		file.setLength(fileSize);
+		channel = file.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+	}
+
+	private void closeFile() {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		try {
+			if (channel != null)
+				channel.close();
+			if (file != null)
+				file.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Error: ", e);
+		}
+		channel = null;
+		file = null;
+	}
+
+	/** Flushes and closes the current log, further samples are dropped. */
+	public synchronized void close() {
+		closeFile();
+	}
+
+	public synchronized boolean isOpen() {
+		return buffer != null;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	public synchronized long getErrorCount() {
+		return errors;
+	}
+}
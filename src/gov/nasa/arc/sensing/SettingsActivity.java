@@ -18,7 +18,7 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
 		@Override
 		public boolean onPreferenceChange(Preference preference, Object newValue) {
 			// Check that the string is an integer
-			if (newValue != null && newValue.toString().length() > 0 && newValue.toString().matches("\\df*")) {
+			if (newValue != null && newValue.toString().length() > 0 && newValue.toString().matches("\\d+")) {
 				return true;
 			}
 			// If now create a message to the user
@@ -27,6 +27,40 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
 		}
 	};
 
+	/**
+	 * Checks that the address is not empty
+	 */
+	Preference.OnPreferenceChangeListener addressListener = new OnPreferenceChangeListener() {
+
+		@Override
+		public boolean onPreferenceChange(Preference preference, Object newValue) {
+			if (newValue != null && newValue.toString().trim().length() > 0) {
+				return true;
+			}
+			Toast.makeText(SettingsActivity.this, "Invalid Input", Toast.LENGTH_SHORT).show();
+			return false;
+		}
+	};
+
+	/**
+	 * Checks that the filter coefficient is a number between 0 and 1
+	 */
+	Preference.OnPreferenceChangeListener coefficientListener = new OnPreferenceChangeListener() {
+
+		@Override
+		public boolean onPreferenceChange(Preference preference, Object newValue) {
+			try {
+				float coefficient = Float.parseFloat(newValue.toString());
+				if (coefficient >= 0.0f && coefficient <= 1.0f)
+					return true;
+			} catch (Exception e) {
+				// reported below
+			}
+			Toast.makeText(SettingsActivity.this, "Invalid Input", Toast.LENGTH_SHORT).show();
+			return false;
+		}
+	};
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -34,13 +68,24 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
 
 		// Add a validator so the ports and IP address are not empty and only accepts numbers
 		Preference ipAddressPreference = getPreferenceScreen().findPreference(this.getString(R.string.ipAddressKey));
-		ipAddressPreference.setOnPreferenceChangeListener(changeListener);
+		ipAddressPreference.setOnPreferenceChangeListener(addressListener);
 		
 		Preference sensorPortPreference = getPreferenceScreen().findPreference(this.getString(R.string.sensorPortKey));
 		sensorPortPreference.setOnPreferenceChangeListener(changeListener);
 		
 		Preference cameraPortPreference = getPreferenceScreen().findPreference(this.getString(R.string.cameraPortKey));
 		cameraPortPreference.setOnPreferenceChangeListener(changeListener);
+
+		Preference statsPortPreference = getPreferenceScreen().findPreference(this.getString(R.string.statsPortKey));
+		statsPortPreference.setOnPreferenceChangeListener(changeListener);
+
+		getPreferenceScreen().findPreference(this.getString(R.string.telemetryPeriodKey)).setOnPreferenceChangeListener(changeListener);
+		getPreferenceScreen().findPreference(this.getString(R.string.fusionPeriodKey)).setOnPreferenceChangeListener(changeListener);
+		getPreferenceScreen().findPreference(this.getString(R.string.filterCoefficientKey)).setOnPreferenceChangeListener(coefficientListener);
+		getPreferenceScreen().findPreference(this.getString(R.string.frameRateKey)).setOnPreferenceChangeListener(changeListener);
+		getPreferenceScreen().findPreference(this.getString(R.string.jpegQualityKey)).setOnPreferenceChangeListener(changeListener);
+		getPreferenceScreen().findPreference(this.getString(R.string.controlPortKey)).setOnPreferenceChangeListener(changeListener);
+		getPreferenceScreen().findPreference(this.getString(R.string.motionPortKey)).setOnPreferenceChangeListener(changeListener);
 	}
 
 	@Override
@@ -0,0 +1,65 @@
+package gov.nasa.arc.sensing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * Milestones of the cold start, measured from the creation of the first activity or service of the process. Each
+ * milestone is recorded once, the first time it is reached, and logged. A rig that was rebooted is back online when
+ * both the first fused orientation and the first frame have been reached.
+ */
+public final class StartupMetrics {
+	private static final String TAG = "StartupMetrics";
+
+	// Milestones
+	public static final int FIRST_VALID_SAMPLE = 0; // first accelerometer/magnetometer orientation
+	public static final int FIRST_FUSION = 1; // first orientation from the fusion backend
+	public static final int CAMERA_OPEN = 2;
+	public static final int FIRST_FRAME = 3; // first preview frame from the camera
+	public static final int MILESTONES = 4;
+
+	private static final String[] MILESTONE_NAMES = { "first sample", "first fusion", "camera open", "first frame" };
+
+	private static volatile long startNanos;
+	// ns since the start, 0 until reached
+	private static final AtomicLongArray milestones = new AtomicLongArray(MILESTONES);
+
+	private StartupMetrics() {
+	}
+
+	/** Marks the start of the process, only the first call counts. */
+	public static synchronized void start() {
+		if (startNanos == 0)
+			startNanos = System.nanoTime();
+	}
+
+	/** Records a milestone unless it was already reached. */
+	public static void mark(int milestone) {
+		if (milestones.get(milestone) != 0 || startNanos == 0)
+			return;
+		long elapsed = Math.max(System.nanoTime() - startNanos, 1);
+		if (milestones.compareAndSet(milestone, 0, elapsed))
+			Log.i(TAG, MILESTONE_NAMES[milestone] + " after " + elapsed / 1000000 + " ms");
+	}
+
+	/** Returns the time of a milestone in ms since the start, -1 if it has not been reached. */
+	public static long getMillis(int milestone) {
+		long elapsed = milestones.get(milestone);
+		return (elapsed != 0) ? elapsed / 1000000 : -1;
+	}
+
+	/** Formats the milestones reached so far. */
+	public static String format() {
+		StringBuilder sb = new StringBuilder("startup");
+		for (int i = 0; i < MILESTONES; i++) {
+			long millis = getMillis(i);
+			sb.append(", ").append(MILESTONE_NAMES[i]).append(' ');
+			if (millis >= 0)
+				sb.append(millis).append(" ms");
+			else
+				sb.append('-');
+		}
+		return sb.append('\n').toString();
+	}
+}
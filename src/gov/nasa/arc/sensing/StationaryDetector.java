@@ -0,0 +1,130 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Decides whether the device is at rest from the gyroscope and accelerometer samples already fed to the fusion. The
+ * device is stationary once the mean angular rate and the variance of the acceleration magnitude over the last
+ * {@link #WINDOW} samples have stayed under their thresholds for {@link #HOLD_NANOS}. A single sample over the wake
+ * thresholds ends the stationary state immediately.
+ */
+public class StationaryDetector {
+
+	public interface Listener {
+		void onStationaryChanged(boolean isStationary);
+	}
+
+	public static final int WINDOW = 16;
+	// Mean angular rate in rad/s and variance of the acceleration magnitude in (m/s^2)^2 below which the device is at rest
+	public static final float GYRO_THRESHOLD = 0.03f;
+	public static final float ACCEL_VARIANCE_THRESHOLD = 0.02f;
+	// A single sample above these wakes the device up
+	public static final float GYRO_WAKE_THRESHOLD = 0.1f;
+	public static final float ACCEL_WAKE_THRESHOLD = 0.5f;
+	// How long the device must be at rest before it is reported stationary
+	public static final long HOLD_NANOS = 2000000000L;
+
+	private final float[] gyroRates = new float[WINDOW];
+	private int gyroHead;
+	private int gyroCount;
+	private double gyroSum;
+
+	private final float[] accelNorms = new float[WINDOW];
+	private int accelHead;
+	private int accelCount;
+	private double accelSum;
+	private double accelSumSquares;
+
+	// Sensor timestamp since which both windows have been under their thresholds, 0 if they are not
+	private long restSince;
+	private volatile boolean isStationary;
+
+	private Listener listener;
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public boolean isStationary() {
+		return isStationary;
+	}
+
+	public void addGyro(long timestamp, float[] values) {
+		float rate = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+		if (gyroCount == WINDOW)
+			gyroSum -= gyroRates[gyroHead];
+		else
+			gyroCount++;
+		gyroRates[gyroHead] = rate;
+		gyroSum += rate;
+		gyroHead = (gyroHead + 1) % WINDOW;
+
+		if (rate > GYRO_WAKE_THRESHOLD)
+			setStationary(false);
+		update(timestamp);
+	}
+
+	public void addAccel(long timestamp, float[] values) {
+		float norm = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+		// Compare with the mean of the window before the sample joins it
+		boolean isJolt = accelCount > 0 && Math.abs(norm - accelSum / accelCount) > ACCEL_WAKE_THRESHOLD;
+
+		if (accelCount == WINDOW) {
+			float old = accelNorms[accelHead];
+			accelSum -= old;
+			accelSumSquares -= old * old;
+		} else {
+			accelCount++;
+		}
+		accelNorms[accelHead] = norm;
+		accelSum += norm;
+		accelSumSquares += norm * norm;
+		accelHead = (accelHead + 1) % WINDOW;
+
+		if (isJolt)
+			setStationary(false);
+		update(timestamp);
+	}
+
+	public float getMeanAngularRate() {
+		return (gyroCount == 0) ? 0.0f : (float) (gyroSum / gyroCount);
+	}
+
+	public float getAccelVariance() {
+		if (accelCount == 0)
+			return 0.0f;
+		double mean = accelSum / accelCount;
+		return (float) Math.max(accelSumSquares / accelCount - mean * mean, 0.0);
+	}
+
+	public void reset() {
+		gyroHead = gyroCount = 0;
+		gyroSum = 0;
+		accelHead = accelCount = 0;
+		accelSum = accelSumSquares = 0;
+		restSince = 0;
+		setStationary(false);
+	}
+
+	private void update(long timestamp) {
+		boolean isAtRest = gyroCount == WINDOW && accelCount == WINDOW && getMeanAngularRate() < GYRO_THRESHOLD
+				&& getAccelVariance() < ACCEL_VARIANCE_THRESHOLD;
+		if (!isAtRest) {
+			restSince = 0;
+			setStationary(false);
+		} else if (restSince == 0) {
+			restSince = timestamp;
+		} else if (timestamp - restSince >= HOLD_NANOS) {
+			setStationary(true);
+		}
+	}
+
+	private void setStationary(boolean stationary) {
+		if (stationary == isStationary)
+			return;
+		isStationary = stationary;
+		if (!stationary)
+			restSince = 0;
+		Listener listener = this.listener;
+		if (listener != null)
+			listener.onStationaryChanged(stationary);
+	}
+}
@@ -0,0 +1,174 @@
+package gov.nasa.arc.sensing;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+/**
+ * Splits NV21 frames into a grid of tiles, finds the tiles whose luma changed since they were last sent and JPEG
+ * encodes only those. Each tile keeps its own reference, so a tile that changes slowly is still sent once its
+ * accumulated difference crosses the threshold.
+ */
+public class TileEncoder {
+
+	// Tiles start and end on even pixels so they never split a NV21 chroma block
+	public static final int DEFAULT_TILE_WIDTH = 80;
+	public static final int DEFAULT_TILE_HEIGHT = 60;
+	public static final float DEFAULT_SAD_THRESHOLD = 6.0f;
+
+	// Sample every STEP-th pixel in both directions inside a tile
+	private static final int STEP = 4;
+
+	private final int tileWidth;
+	private final int tileHeight;
+	private float sadThreshold = DEFAULT_SAD_THRESHOLD;
+
+	private int width;
+	private int height;
+	private int columns;
+	private int rows;
+	private byte[] reference;
+	private int[] changed;
+	// Tiles whose last send failed, sent again with the next frame
+	private boolean[] stale;
+	private boolean hasReference;
+	private boolean keyframe;
+
+	private final Rect rect = new Rect();
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+	public TileEncoder() {
+		this(DEFAULT_TILE_WIDTH, DEFAULT_TILE_HEIGHT);
+	}
+
+	public TileEncoder(int tileWidth, int tileHeight) {
+		this.tileWidth = tileWidth & ~1;
+		this.tileHeight = tileHeight & ~1;
+	}
+
+	/**
+	 * Compares the frame against the tile references and stores the indices of the tiles to send. The references of
+	 * those tiles are updated, as the caller is expected to send them, and must be dropped with
+	 * {@link #invalidate(int)} if the send fails.
+	 *
+	 * @param keyframe
+	 *            true to select every tile
+	 * @return the number of tiles selected, see {@link #getChangedTile(int)}
+	 */
+	public synchronized int findChangedTiles(byte[] data, int width, int height, boolean keyframe) {
+		if (reference == null || width != this.width || height != this.height) {
+			this.width = width;
+			this.height = height;
+			columns = (width + tileWidth - 1) / tileWidth;
+			rows = (height + tileHeight - 1) / tileHeight;
+			reference = new byte[width * height];
+			changed = new int[columns * rows];
+			stale = new boolean[columns * rows];
+			hasReference = false;
+		}
+		if (!hasReference) {
+			keyframe = true;
+			hasReference = true;
+		}
+		this.keyframe = keyframe;
+
+		int count = 0;
+		for (int tile = 0; tile < columns * rows; tile++) {
+			if (keyframe || stale[tile] || isChanged(data, tile)) {
+				stale[tile] = false;
+				updateReference(data, tile);
+				changed[count++] = tile;
+			}
+		}
+		return count;
+	}
+
+	private boolean isChanged(byte[] data, int tile) {
+		int x0 = getTileX(tile), y0 = getTileY(tile);
+		int x1 = x0 + getTileWidth(tile), y1 = y0 + getTileHeight(tile);
+
+		int sad = 0, samples = 0;
+		for (int y = y0; y < y1; y += STEP) {
+			int row = y * width;
+			for (int x = x0; x < x1; x += STEP, samples++) {
+				int diff = (data[row + x] & 0xff) - (reference[row + x] & 0xff);
+				sad += diff < 0 ? -diff : diff;
+			}
+		}
+		return sad > sadThreshold * samples;
+	}
+
+	private void updateReference(byte[] data, int tile) {
+		int x0 = getTileX(tile), y0 = getTileY(tile);
+		int w = getTileWidth(tile), y1 = y0 + getTileHeight(tile);
+		for (int y = y0; y < y1; y++) {
+			System.arraycopy(data, y * width + x0, reference, y * width + x0, w);
+		}
+	}
+
+	/** JPEG encodes one tile of a NV21 frame. */
+	public byte[] encode(YuvImage image, int tile, int quality) {
+		int x = getTileX(tile), y = getTileY(tile);
+		rect.set(x, y, x + getTileWidth(tile), y + getTileHeight(tile));
+		bos.reset();
+		image.compressToJpeg(rect, quality, bos);
+		return bos.toByteArray();
+	}
+
+	public YuvImage wrap(byte[] data) {
+		return new YuvImage(data, ImageFormat.NV21, width, height, null);
+	}
+
+	/**
+	 * Drops the reference of a tile that could not be sent, so that it is sent with the next frame even if it did not
+	 * change. Can be called from the sending thread.
+	 */
+	public synchronized void invalidate(int tile) {
+		if (stale != null && tile < stale.length)
+			stale[tile] = true;
+	}
+
+	/** Forgets every reference so the next frame is sent in full. */
+	public void reset() {
+		hasReference = false;
+	}
+
+	/** Returns true if the last call to {@link #findChangedTiles} selected every tile for a full refresh. */
+	public boolean isKeyframe() {
+		return keyframe;
+	}
+
+	public int getChangedTile(int i) {
+		return changed[i];
+	}
+
+	public int getTileCount() {
+		return columns * rows;
+	}
+
+	public int getTileX(int tile) {
+		return (tile % columns) * tileWidth;
+	}
+
+	public int getTileY(int tile) {
+		return (tile / columns) * tileHeight;
+	}
+
+	public int getTileWidth(int tile) {
+		return Math.min(tileWidth, width - getTileX(tile));
+	}
+
+	public int getTileHeight(int tile) {
+		return Math.min(tileHeight, height - getTileY(tile));
+	}
+
+	public float getSadThreshold() {
+		return sadThreshold;
+	}
+
+	public void setSadThreshold(float sadThreshold) {
+		this.sadThreshold = sadThreshold;
+	}
+}
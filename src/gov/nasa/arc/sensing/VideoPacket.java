@@ -0,0 +1,175 @@
+package gov.nasa.arc.sensing;
+
+/**
+ * Layout of the video datagrams sent by {@link CameraPreview}, written by the app and read by the receiver library,
+ * which builds this class from the app's source tree so that both sides share one definition of the protocol.
+ *
+ * Full frames use the original 5 byte header: frame number (0-127), number of packets, packet index and payload size
+ * (big endian). Tile packets set the high bit of the first byte and extend the header with the tile flags, the tile
+ * rectangle and the size of the whole frame so the receiver can composite the tile into its current image. Stamped
+ * tile packets append the capture time of the frame, in nanoseconds of the device monotonic clock, and the fused
+ * azimuth, pitch and roll at that time, in radians. A stamped full frame is sent as a single tile covering the whole
+ * frame.
+ */
+public final class VideoPacket {
+
+	public static final int DATAGRAM_SIZE = 1450;
+
+	public static final int HEADER_SIZE = 5;
+	// The packet count and index are one byte each
+	public static final int MAX_PACKETS = 255;
+	public static final int TILE_HEADER_SIZE = 18;
+	public static final int STAMP_SIZE = 20; // capture time (ns) followed by azimuth, pitch and roll (rad)
+
+	// Set on the first byte of every tile packet, frame numbers only use the low 7 bits
+	public static final int TILE_MARKER = 0x80;
+	public static final int FRAME_MASK = 0x7f;
+
+	// Tile flags
+	public static final int FLAG_KEYFRAME = 0x01; // the tile is part of a full refresh
+	public static final int FLAG_END_OF_FRAME = 0x02; // last tile of the frame
+	public static final int FLAG_STAMPED = 0x04; // the header is followed by the capture stamp
+
+	private VideoPacket() {
+	}
+
+	public static void writeHeader(byte[] packet, int frame, int packets, int index, int size) {
+		packet[0] = (byte) (frame & FRAME_MASK);
+		packet[1] = (byte) packets;
+		packet[2] = (byte) index;
+		packet[3] = (byte) (size >> 8);
+		packet[4] = (byte) size;
+	}
+
+	public static void writeTileHeader(byte[] packet, int frame, int packets, int index, int size, int flags, int x, int y, int width, int height, int frameWidth, int frameHeight) {
+		writeHeader(packet, frame, packets, index, size);
+		packet[0] |= TILE_MARKER;
+		packet[5] = (byte) flags;
+		putShort(packet, 6, x);
+		putShort(packet, 8, y);
+		putShort(packet, 10, width);
+		putShort(packet, 12, height);
+		putShort(packet, 14, frameWidth);
+		putShort(packet, 16, frameHeight);
+	}
+
+	/** Writes the capture stamp after the tile header, the flags must include {@link #FLAG_STAMPED}. */
+	public static void writeStamp(byte[] packet, long captureTime, float azimuth, float pitch, float roll) {
+		int offset = TILE_HEADER_SIZE;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			packet[offset++] = (byte) (captureTime >> shift);
+		}
+		putInt(packet, offset, Float.floatToIntBits(azimuth));
+		putInt(packet, offset + 4, Float.floatToIntBits(pitch));
+		putInt(packet, offset + 8, Float.floatToIntBits(roll));
+	}
+
+	public static int getTileHeaderSize(int flags) {
+		return ((flags & FLAG_STAMPED) != 0) ? TILE_HEADER_SIZE + STAMP_SIZE : TILE_HEADER_SIZE;
+	}
+
+	public static boolean isTile(byte[] packet, int offset) {
+		return (packet[offset] & TILE_MARKER) != 0;
+	}
+
+	public static int getHeaderSize(byte[] packet, int offset) {
+		if (!isTile(packet, offset))
+			return HEADER_SIZE;
+		return isStamped(packet, offset) ? TILE_HEADER_SIZE + STAMP_SIZE : TILE_HEADER_SIZE;
+	}
+
+	/** Returns true if the packet is long enough to hold its header and the payload it announces. */
+	public static boolean isValid(byte[] packet, int offset, int length) {
+		if (length < HEADER_SIZE || (isTile(packet, offset) && length < TILE_HEADER_SIZE))
+			return false;
+		int headerSize = getHeaderSize(packet, offset);
+		return length >= headerSize && getPackets(packet, offset) > 0 && getIndex(packet, offset) < getPackets(packet, offset)
+				&& headerSize + getSize(packet, offset) <= length;
+	}
+
+	public static int getFrame(byte[] packet, int offset) {
+		return packet[offset] & FRAME_MASK;
+	}
+
+	public static int getPackets(byte[] packet, int offset) {
+		return packet[offset + 1] & 0xff;
+	}
+
+	public static int getIndex(byte[] packet, int offset) {
+		return packet[offset + 2] & 0xff;
+	}
+
+	public static int getSize(byte[] packet, int offset) {
+		return getShort(packet, offset + 3);
+	}
+
+	public static int getFlags(byte[] packet, int offset) {
+		return packet[offset + 5] & 0xff;
+	}
+
+	public static int getTileX(byte[] packet, int offset) {
+		return getShort(packet, offset + 6);
+	}
+
+	public static int getTileY(byte[] packet, int offset) {
+		return getShort(packet, offset + 8);
+	}
+
+	public static int getTileWidth(byte[] packet, int offset) {
+		return getShort(packet, offset + 10);
+	}
+
+	public static int getTileHeight(byte[] packet, int offset) {
+		return getShort(packet, offset + 12);
+	}
+
+	public static int getFrameWidth(byte[] packet, int offset) {
+		return getShort(packet, offset + 14);
+	}
+
+	public static int getFrameHeight(byte[] packet, int offset) {
+		return getShort(packet, offset + 16);
+	}
+
+	public static boolean isStamped(byte[] packet, int offset) {
+		return isTile(packet, offset) && (getFlags(packet, offset) & FLAG_STAMPED) != 0;
+	}
+
+	public static long getCaptureTime(byte[] packet, int offset) {
+		long time = 0;
+		for (int i = 0; i < 8; i++) {
+			time = (time << 8) | (packet[offset + TILE_HEADER_SIZE + i] & 0xff);
+		}
+		return time;
+	}
+
+	public static float getAzimuth(byte[] packet, int offset) {
+		return Float.intBitsToFloat(getInt(packet, offset + TILE_HEADER_SIZE + 8));
+	}
+
+	public static float getPitch(byte[] packet, int offset) {
+		return Float.intBitsToFloat(getInt(packet, offset + TILE_HEADER_SIZE + 12));
+	}
+
+	public static float getRoll(byte[] packet, int offset) {
+		return Float.intBitsToFloat(getInt(packet, offset + TILE_HEADER_SIZE + 16));
+	}
+
+	private static int getInt(byte[] packet, int offset) {
+		return (getShort(packet, offset) << 16) | getShort(packet, offset + 2);
+	}
+
+	private static int getShort(byte[] packet, int offset) {
+		return ((packet[offset] & 0xff) << 8) | (packet[offset + 1] & 0xff);
+	}
+
+	private static void putInt(byte[] packet, int offset, int value) {
+		putShort(packet, offset, value >> 16);
+		putShort(packet, offset + 2, value);
+	}
+
+	private static void putShort(byte[] packet, int offset, int value) {
+		packet[offset] = (byte) (value >> 8);
+		packet[offset + 1] = (byte) value;
+	}
+}
@@ -0,0 +1,191 @@
+package gov.nasa.arc.sensing;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts camera preview frames from YUV420 NV21 to ARGB8888 pixels.
+ *
+ * NV21 stores the full resolution Y plane followed by one interleaved V/U pair for every 2x2 block of pixels, with the
+ * chroma rows having the same stride as the luma rows. The conversion uses the full range BT.601 coefficients the
+ * camera JPEG encoder uses, in 16.16 fixed point so that no float math happens per pixel.
+ */
+public final class YuvConverter {
+
+	private static final int SHIFT = 16;
+	private static final int ROUND = 1 << (SHIFT - 1);
+
+	// 1.402, 0.344136, 0.714136 and 1.772 scaled by 2^16
+	private static final int CR_R = 91881;
+	private static final int CB_G = 22554;
+	private static final int CR_G = 46802;
+	private static final int CB_B = 116130;
+
+	// Frames smaller than this are converted on the calling thread, splitting them costs more than it saves
+	private static final int PARALLEL_MIN_PIXELS = 640 * 480;
+
+	// Per chroma value contributions, already scaled and rounded
+	private static final int[] TABLE_R_V = new int[256];
+	private static final int[] TABLE_B_U = new int[256];
+	// The green contribution depends on both U and V: their products stay scaled and are rounded once summed, so the
+	// tables take 2 KB and give the same result as a 256x256 table
+	private static final int[] TABLE_G_U = new int[256];
+	private static final int[] TABLE_G_V = new int[256];
+
+	// Clamps Y + contribution to 0..255, indexed with CLAMP_OFFSET added
+	private static final int CLAMP_OFFSET = 384;
+	private static final int[] CLAMP = new int[256 + 2 * CLAMP_OFFSET];
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService executor;
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i - 128;
+			TABLE_R_V[i] = (CR_R * c + ROUND) >> SHIFT;
+			TABLE_B_U[i] = (CB_B * c + ROUND) >> SHIFT;
+			TABLE_G_U[i] = CB_G * c;
+			TABLE_G_V[i] = CR_G * c + ROUND;
+		}
+		for (int i = 0; i < CLAMP.length; i++) {
+			int c = i - CLAMP_OFFSET;
+			CLAMP[i] = c > 255 ? 255 : c < 0 ? 0 : c;
+		}
+	}
+
+	private YuvConverter() {
+	}
+
+	/**
+	 * Converts a NV21 frame into a caller supplied ARGB8888 buffer, splitting large frames across all cores.
+	 *
+	 * @param data
+	 *            byte array on YUV420 NV21 format.
+	 * @param width
+	 *            pixels width, must be even
+	 * @param height
+	 *            pixels height, must be even
+	 * @param pixels
+	 *            output buffer of at least width * height ints, each int is a pixel ARGB.
+	 * @param useTables
+	 *            true to use the precomputed lookup tables, false to compute the fixed point products per pixel
+	 */
+	public static void convert(byte[] data, int width, int height, int[] pixels, boolean useTables) {
+		if (THREADS > 1 && width * height >= PARALLEL_MIN_PIXELS) {
+			convertParallel(data, width, height, pixels, useTables, THREADS);
+		} else {
+			convertRows(data, width, height, pixels, 0, height, useTables);
+		}
+	}
+
+	/**
+	 * Converts a NV21 frame splitting its rows into the given number of bands, each band converted on its own worker.
+	 * The calling thread converts the last band and waits for the others, an interrupt is only restored once they are
+	 * done so the frame is always complete.
+	 */
+	public static void convertParallel(final byte[] data, final int width, final int height, final int[] pixels, final boolean useTables, int bands) {
+		// Bands must start on an even row so every band owns whole chroma rows
+		int pairs = height / 2;
+		if (bands > pairs)
+			bands = pairs;
+		if (bands <= 1) {
+			convertRows(data, width, height, pixels, 0, height, useTables);
+			return;
+		}
+
+		final CountDownLatch done = new CountDownLatch(bands - 1);
+		ExecutorService pool = getExecutor();
+		int start = 0;
+		for (int i = 0; i < bands; i++) {
+			final int rowStart = start;
+			final int rowEnd = 2 * (pairs * (i + 1) / bands);
+			start = rowEnd;
+			if (i == bands - 1) {
+				convertRows(data, width, height, pixels, rowStart, rowEnd, useTables);
+			} else {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							convertRows(data, width, height, pixels, rowStart, rowEnd, useTables);
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+		}
+
+		// The workers write into pixels, so return only once every band is done even if interrupted
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Converts rows [rowStart, rowEnd) of a NV21 frame. Both bounds must be even.
+	 */
+	static void convertRows(byte[] data, int width, int height, int[] pixels, int rowStart, int rowEnd, boolean useTables) {
+		final int frameSize = width * height;
+
+		for (int row = rowStart; row < rowEnd; row += 2) {
+			int yIndex = row * width;
+			int uvIndex = frameSize + (row >> 1) * width;
+
+			for (int col = 0; col < width; col += 2, yIndex += 2, uvIndex += 2) {
+				// NV21 stores V before U
+				int v = data[uvIndex] & 0xff;
+				int u = data[uvIndex + 1] & 0xff;
+
+				int dr, dg, db;
+				if (useTables) {
+					dr = TABLE_R_V[v];
+					dg = (TABLE_G_U[u] + TABLE_G_V[v]) >> SHIFT;
+					db = TABLE_B_U[u];
+				} else {
+					dr = (CR_R * (v - 128) + ROUND) >> SHIFT;
+					dg = (CB_G * (u - 128) + CR_G * (v - 128) + ROUND) >> SHIFT;
+					db = (CB_B * (u - 128) + ROUND) >> SHIFT;
+				}
+
+				pixels[yIndex] = pack(data[yIndex] & 0xff, dr, dg, db);
+				pixels[yIndex + 1] = pack(data[yIndex + 1] & 0xff, dr, dg, db);
+				pixels[yIndex + width] = pack(data[yIndex + width] & 0xff, dr, dg, db);
+				pixels[yIndex + width + 1] = pack(data[yIndex + width + 1] & 0xff, dr, dg, db);
+			}
+		}
+	}
+
+	private static int pack(int y, int dr, int dg, int db) {
+		int r = CLAMP[y + dr + CLAMP_OFFSET];
+		int g = CLAMP[y - dg + CLAMP_OFFSET];
+		int b = CLAMP[y + db + CLAMP_OFFSET];
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Math.max(1, THREADS - 1), new ThreadFactory() {
+				private int count = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "YuvConverter-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,123 @@
+package gov.nasa.arc.sensing;
+
+import java.util.Locale;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+/**
+ * Checks the backend selection of {@link SensorFusion} and the rotation vector to orientation path of
+ * {@link RotationVectorBackend} against known rotations. It needs the platform SensorManager math, so it runs on the
+ * device, from {@link FusionBenchmarkTest} and before every {@link FusionBenchmark}, whose report it heads.
+ */
+public final class FusionBackendCheck {
+	private static final String TAG = "FusionBackendCheck";
+
+	// Float rounding of the quaternion to matrix to angles path
+	public static final float TOLERANCE = 0.001f; // rad
+
+	private final StringBuilder report = new StringBuilder();
+	private int failures;
+
+	private FusionBackendCheck() {
+	}
+
+	/** Runs every check and logs the failures. */
+	public static FusionBackendCheck run() {
+		FusionBackendCheck check = new FusionBackendCheck();
+		check.checkSelection();
+		check.checkRotationVector();
+		check.report.append(check.failures == 0 ? "backend check passed" : "backend check: " + check.failures + " FAILED").append('\n');
+		if (check.failures != 0)
+			Log.e(TAG, check.report.toString());
+		return check;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public String format() {
+		return report.toString();
+	}
+
+	// A fusion fed from recordings has both the rotation vector and the complementary backend
+	private void checkSelection() {
+		SensorFusion fusion = new SensorFusion();
+		try {
+			String rotationVector = new RotationVectorBackend(Sensor.TYPE_ROTATION_VECTOR).getName();
+			// The accelerometer/magnetometer output keeps the rotation vector fusing in the background
+			String[] expected = { rotationVector, rotationVector, "complementary" };
+			for (int output = 0; output < expected.length; output++) {
+				boolean selected = fusion.setOutputSelection(output);
+				check("output " + SensorFusion.OUTPUT_NAMES[output] + " uses " + expected[output], selected && fusion.IMUOutputSelection == output
+						&& fusion.getBackend().getName().equals(expected[output]));
+				check("output name " + SensorFusion.OUTPUT_NAMES[output], SensorFusion.getOutputByName(SensorFusion.OUTPUT_NAMES[output]) == output);
+			}
+			check("unknown output refused", !fusion.setOutputSelection(SensorFusion.OUTPUT_NAMES.length) && fusion.IMUOutputSelection == 2);
+		} finally {
+			fusion.release();
+		}
+	}
+
+	private void checkRotationVector() {
+		RotationVectorBackend backend = new RotationVectorBackend(Sensor.TYPE_ROTATION_VECTOR);
+		float[] out = new float[3];
+		check("no orientation before a sample", !backend.fuse(null, out));
+
+		backend.setCoordinateRemap(SensorManager.AXIS_X, SensorManager.AXIS_Y);
+		// A rotation about z turns the device's y axis away from north: the azimuth is the opposite angle
+		checkRotation(backend, "azimuth", 0, 0, 1, 60, -60, 0, 0);
+		// About x the top edge goes up, the pitch is negative
+		checkRotation(backend, "pitch", 1, 0, 0, 30, 0, -30, 0);
+		checkRotation(backend, "roll", 0, 1, 0, 40, 0, 0, 40);
+
+		// With the x axis remapped to the device's y and y to its -x, a device lying flat facing north reads a quarter turn
+		backend.setCoordinateRemap(SensorManager.AXIS_Y, SensorManager.AXIS_MINUS_X);
+		checkRotation(backend, "remapped", 0, 0, 1, 0, 90, 0, 0);
+
+		backend.reset();
+		check("no orientation after reset", !backend.fuse(null, out));
+	}
+
+	// Feeds the rotation of the given angle about an axis, with and without the scalar part, and checks the orientation
+	private void checkRotation(RotationVectorBackend backend, String name, float x, float y, float z, float degrees, float azimuth, float pitch,
+			float roll) {
+		double half = Math.toRadians(degrees) / 2;
+		float sin = (float) Math.sin(half);
+		float[] expected = { (float) Math.toRadians(azimuth), (float) Math.toRadians(pitch), (float) Math.toRadians(roll) };
+		float[] out = new float[3];
+
+		backend.onSensorSample(Sensor.TYPE_ROTATION_VECTOR, 0, new float[] { sin * x, sin * y, sin * z, (float) Math.cos(half) });
+		boolean fused = backend.fuse(null, out);
+		check(String.format(Locale.ENGLISH, "%s %.0f deg", name, degrees), fused && isClose(out, expected), out);
+
+		// Recordings keep three values, the scalar part is rebuilt
+		backend.onSensorSample(Sensor.TYPE_ROTATION_VECTOR, 0, new float[] { sin * x, sin * y, sin * z });
+		fused = backend.fuse(null, out);
+		check(String.format(Locale.ENGLISH, "%s %.0f deg from 3 values", name, degrees), fused && isClose(out, expected), out);
+	}
+
+	private static boolean isClose(float[] a, float[] b) {
+		for (int i = 0; i < 3; i++) {
+			if (!(Math.abs(a[i] - b[i]) <= TOLERANCE))
+				return false;
+		}
+		return true;
+	}
+
+	private void check(String name, boolean passed) {
+		report.append(passed ? "ok   " : "FAIL ").append(name).append('\n');
+		if (!passed)
+			failures++;
+	}
+
+	private void check(String name, boolean passed, float[] orientation) {
+		if (passed)
+			check(name, true);
+		else
+			check(String.format(Locale.ENGLISH, "%s, got %.1f %.1f %.1f deg", name, Math.toDegrees(orientation[0]), Math.toDegrees(orientation[1]),
+					Math.toDegrees(orientation[2])), false);
+	}
+}
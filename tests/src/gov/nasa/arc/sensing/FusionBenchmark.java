@@ -0,0 +1,162 @@
+package gov.nasa.arc.sensing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Compares the fusion backends the device supports on the live sensors. A baseline phase measures the CPU time of the
+ * process without an extra fusion, then every backend runs in its own {@link SensorFusion} for one phase. The report
+ * gives the CPU time of each backend above the baseline and the age of its newest sample when the orientation is
+ * published, which includes the wait for the next fusion tick. It starts with a {@link FusionBackendCheck}.
+ *
+ * Runs on the main thread, the rest of the app should be idle while it runs. It is part of the test project and runs
+ * from {@link FusionBenchmarkTest}.
+ */
+public class FusionBenchmark {
+	private static final String TAG = "FusionBenchmark";
+
+	public static final long PHASE_MILLIS = 15000;
+	// The first samples of a phase are not measured, while the sensors start
+	public static final long WARMUP_MILLIS = 2000;
+
+	private static class Result {
+		final String name;
+		long cpuMillis;
+		long elapsedMillis;
+		LatencyHistogram latency;
+
+		Result(String name) {
+			this.name = name;
+		}
+	}
+
+	private final SensorManager manager;
+	private final Handler handler = new Handler();
+	private final List<Integer> outputs = new ArrayList<Integer>();
+	private final List<Result> results = new ArrayList<Result>();
+	private int phase = -1;
+	private FusionBackendCheck check;
+	private SensorFusion fusion;
+	private long phaseCpu;
+	private long phaseStart;
+	private volatile boolean running;
+
+	public FusionBenchmark(SensorManager manager) {
+		this.manager = manager;
+	}
+
+	public void start() {
+		if (running)
+			return;
+		// One phase for each output that runs a backend, the accelerometer/magnetometer one does not
+		outputs.clear();
+		results.clear();
+		check = FusionBackendCheck.run();
+		if (RotationVectorBackend.create(manager) != null)
+			outputs.add(1);
+		if (manager.getDefaultSensor(Sensor.TYPE_GYROSCOPE) != null)
+			outputs.add(2);
+
+		running = true;
+		phase = -1;
+		results.add(new Result("baseline"));
+		startPhase();
+		Log.i(TAG, "Started, " + outputs.size() + " backends");
+	}
+
+	public void stop() {
+		if (!running)
+			return;
+		handler.removeCallbacks(endPhase);
+		handler.removeCallbacks(measure);
+		releaseFusion();
+		running = false;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void startPhase() {
+		if (phase >= 0) {
+			fusion = new SensorFusion(manager, outputs.get(phase));
+			// Slower ticks while the device lies still would hide the latency of the backend
+			fusion.setLowPowerEnabled(false);
+			fusion.setOutputLatencyEnabled(true);
+			results.add(new Result(fusion.getBackend().getName()));
+		}
+		handler.postDelayed(measure, WARMUP_MILLIS);
+	}
+
+	// Starts measuring once the sensors are warm
+	private final Runnable measure = new Runnable() {
+		@Override
+		public void run() {
+			if (fusion != null)
+				fusion.getOutputLatency().reset();
+			phaseCpu = Process.getElapsedCpuTime();
+			phaseStart = System.currentTimeMillis();
+			handler.postDelayed(endPhase, PHASE_MILLIS);
+		}
+	};
+
+	private final Runnable endPhase = new Runnable() {
+		@Override
+		public void run() {
+			Result result = results.get(results.size() - 1);
+			result.cpuMillis = Process.getElapsedCpuTime() - phaseCpu;
+			result.elapsedMillis = System.currentTimeMillis() - phaseStart;
+			if (fusion != null)
+				result.latency = fusion.getOutputLatency();
+			releaseFusion();
+
+			phase++;
+			if (phase < outputs.size()) {
+				startPhase();
+			} else {
+				running = false;
+				Log.i(TAG, format());
+			}
+		}
+	};
+
+	private void releaseFusion() {
+		if (fusion == null)
+			return;
+		fusion.unregisterListeners();
+		fusion.release();
+		fusion = null;
+	}
+
+	/** Formats the results of the finished phases, CPU in percent of one core and latencies in milliseconds. */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(running ? "fusion benchmark, phase " + (phase + 2) + " of " + (outputs.size() + 1) : "fusion benchmark").append('\n');
+		if (check != null && check.getFailures() != 0)
+			sb.append(check.format());
+		else if (check != null)
+			sb.append("backend check passed\n");
+		double baseline = -1;
+		for (Result result : results) {
+			if (result.elapsedMillis == 0)
+				continue;
+			double cpu = 100.0 * result.cpuMillis / result.elapsedMillis;
+			if (baseline < 0) {
+				baseline = cpu;
+				sb.append(String.format(Locale.ENGLISH, "%-20s cpu %5.2f%%%n", result.name, cpu));
+			} else {
+				LatencyHistogram latency = result.latency;
+				sb.append(String.format(Locale.ENGLISH, "%-20s cpu %+5.2f%% latency p50 %.1f p99 %.1f max %.1f (%d)%n", result.name, cpu - baseline,
+						latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6, latency.getMax() / 1e6, latency.getCount()));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,58 @@
+package gov.nasa.arc.sensing;
+
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Runs the {@link FusionBackendCheck} and the {@link FusionBenchmark} on the live sensors of the device. The benchmark
+ * takes about 17 s per backend plus a baseline phase, the device should lie still and the app should be idle:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class gov.nasa.arc.sensing.FusionBenchmarkTest \
+ *     gov.nasa.arc.sensing.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+public class FusionBenchmarkTest extends InstrumentationTestCase {
+	private static final String TAG = "FusionBenchmarkTest";
+
+	// Polling period while the benchmark runs on the main thread
+	private static final long POLL_MILLIS = 500;
+
+	public void testBackendCheck() {
+		FusionBackendCheck check = FusionBackendCheck.run();
+		Log.i(TAG, check.format());
+		assertEquals(check.format(), 0, check.getFailures());
+	}
+
+	public void testBenchmark() throws Exception {
+		Context context = getInstrumentation().getTargetContext();
+		final SensorManager manager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		final FusionBenchmark[] benchmark = new FusionBenchmark[1];
+		// The benchmark posts its phases to the handler of the thread that creates it
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				benchmark[0] = new FusionBenchmark(manager);
+				benchmark[0].start();
+			}
+		});
+
+		try {
+			while (benchmark[0].isRunning()) {
+				Thread.sleep(POLL_MILLIS);
+			}
+		} finally {
+			getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					benchmark[0].stop();
+				}
+			});
+		}
+		String report = benchmark[0].format();
+		Log.i(TAG, report);
+		assertTrue(report, report.contains("backend check passed"));
+	}
+}
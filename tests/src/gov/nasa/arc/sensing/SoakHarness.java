@@ -0,0 +1,315 @@
+package gov.nasa.arc.sensing;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Locale;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Soak test of the hot paths with synthetic load. An offline {@link SensorFusion} is fed accelerometer, gyroscope and
+ * magnetometer samples at up to 1 kHz and fused at the configured period, while a {@link CameraPreview} that is not
+ * attached to a camera encodes and sends synthetic NV21 frames at up to 60 fps to a sink on the loopback interface. The
+ * harness runs until it is stopped and reports the throughput, the allocations, the GC count, the stalls of an idle
+ * thread (GC pauses and scheduling hiccups), the latency percentiles of {@link PipelineStats} and the dropped work.
+ *
+ * The harness turns {@link PipelineStats} on and resets it, the real pipeline should be idle while it runs. It is part
+ * of the test project and runs from {@link SoakTest}, not from the app.
+ */
+public class SoakHarness {
+	private static final String TAG = "SoakHarness";
+
+	public static final int DEFAULT_IMU_RATE = 1000; // Hz
+	public static final int DEFAULT_FRAME_RATE = 60; // fps
+	// The magnetometer runs at a tenth of the IMU rate, as on most phones
+	private static final int MAGNETOMETER_DIVIDER = 10;
+	// The hiccup thread sleeps this long and records how late it wakes up
+	private static final long HICCUP_PERIOD = 1000000; // ns
+	// Synthetic frames are generated once and cycled
+	private static final int FRAME_COUNT = 16;
+
+	private final int imuRate;
+	private final int frameRate;
+	private final SensorFusion sensorFusion = new SensorFusion();
+	private final CameraPreview preview;
+
+	private volatile boolean running;
+	private Thread imuThread;
+	private Thread fusionThread;
+	private Thread videoThread;
+	private Thread hiccupThread;
+	private Thread sinkThread;
+	private DatagramSocket sendSocket;
+	private DatagramSocket sinkSocket;
+	// PipelineStats.enabled before the start, restored by stop
+	private boolean wasStatsEnabled;
+
+	// Statistics, each written by one thread
+	private final LatencyHistogram hiccups = new LatencyHistogram();
+	private volatile long imuTicks;
+	private volatile long imuLate;
+	private volatile long frames;
+	private volatile long framesLate;
+	private volatile long sinkPackets;
+	private long startNanos;
+	private int startGcCount;
+	private long startAllocCount;
+	private long startAllocSize;
+
+	public SoakHarness(Context context) {
+		this(context, DEFAULT_IMU_RATE, DEFAULT_FRAME_RATE);
+	}
+
+	/** Creates the harness, on the main thread since it creates a view. */
+	public SoakHarness(Context context, int imuRate, int frameRate) {
+		this.imuRate = imuRate;
+		this.frameRate = frameRate;
+		preview = new CameraPreview(context);
+		preview.setSensorFusion(sensorFusion);
+	}
+
+	public synchronized void start() throws IOException {
+		if (running)
+			return;
+
+		sinkSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		sendSocket = new DatagramSocket();
+		running = true;
+		preview.setSocket(sendSocket);
+		preview.setDestination(sinkSocket.getLocalAddress(), sinkSocket.getLocalPort());
+		preview.setSendingData(true);
+
+		wasStatsEnabled = PipelineStats.enabled;
+		PipelineStats.enabled = true;
+		PipelineStats.reset();
+		hiccups.reset();
+		imuTicks = imuLate = frames = framesLate = sinkPackets = 0;
+		Debug.startAllocCounting();
+		startGcCount = Debug.getGlobalGcInvocationCount();
+		startAllocCount = Debug.getGlobalAllocCount();
+		startAllocSize = Debug.getGlobalAllocSize();
+		startNanos = System.nanoTime();
+
+		imuThread = start(imuTask, "SoakIMU");
+		fusionThread = start(fusionTask, "SoakFusion");
+		videoThread = start(videoTask, "SoakVideo");
+		hiccupThread = start(hiccupTask, "SoakHiccup");
+		sinkThread = start(sinkTask, "SoakSink");
+		Log.i(TAG, "Started at " + imuRate + " Hz and " + frameRate + " fps");
+	}
+
+	private Thread start(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.start();
+		return thread;
+	}
+
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		try {
+			imuThread.join();
+			fusionThread.join();
+			videoThread.join();
+			hiccupThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		preview.setSendingData(false);
+		sinkSocket.close();
+		sendSocket.close();
+		// The sink ends once its socket is closed, a restart must not overlap it
+		try {
+			sinkThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Debug.stopAllocCounting();
+		Log.i(TAG, format());
+		PipelineStats.enabled = wasStatsEnabled;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	// Sleeps until the given System.nanoTime(), returns false if it had already passed by more than one period
+	private static boolean waitUntil(long deadline, long period) {
+		long delay = deadline - System.nanoTime();
+		if (delay < -period)
+			return false;
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return true;
+	}
+
+	// Rotates slowly about every axis, so that the gyroscope integration and the accel/mag orientation both move
+	private final Runnable imuTask = new Runnable() {
+		@Override
+		public void run() {
+			float[] accel = new float[3];
+			float[] gyro = new float[3];
+			float[] magnet = new float[3];
+			long period = 1000000000L / imuRate;
+			long next = System.nanoTime();
+			int tick = 0;
+			while (running) {
+				long now = System.nanoTime();
+				double t = (now - startNanos) / 1e9;
+				double roll = 0.3 * Math.sin(0.5 * t);
+				double pitch = 0.2 * Math.sin(0.3 * t);
+
+				gyro[0] = (float) (0.06 * Math.cos(0.3 * t));
+				gyro[1] = (float) (0.15 * Math.cos(0.5 * t));
+				gyro[2] = (float) (0.05 * Math.sin(0.1 * t));
+				sensorFusion.onSensorSample(Sensor.TYPE_GYROSCOPE, now, gyro);
+
+				accel[0] = (float) (9.81 * Math.sin(roll));
+				accel[1] = (float) (9.81 * Math.sin(pitch));
+				accel[2] = (float) (9.81 * Math.cos(roll) * Math.cos(pitch));
+				sensorFusion.onSensorSample(Sensor.TYPE_ACCELEROMETER, now, accel);
+
+				if (tick % MAGNETOMETER_DIVIDER == 0) {
+					magnet[0] = 20.0f;
+					magnet[1] = (float) (5.0 * Math.sin(0.1 * t));
+					magnet[2] = -40.0f;
+					sensorFusion.onSensorSample(Sensor.TYPE_MAGNETIC_FIELD, now, magnet);
+				}
+				tick++;
+				imuTicks++;
+
+				next += period;
+				if (!waitUntil(next, period)) {
+					imuLate++;
+					next = System.nanoTime();
+				}
+			}
+		}
+	};
+
+	// Runs the complementary filter at the configured period, like the fusion timer
+	private final Runnable fusionTask = new Runnable() {
+		@Override
+		public void run() {
+			long next = System.nanoTime();
+			while (running) {
+				sensorFusion.fuseOrientation();
+				long period = RuntimeConfig.get().fusionPeriod * 1000000L;
+				next += period;
+				if (!waitUntil(next, period))
+					next = System.nanoTime();
+			}
+		}
+	};
+
+	// Feeds frames to the preview callback, as the camera would
+	private final Runnable videoTask = new Runnable() {
+		@Override
+		public void run() {
+			int width = preview.getPreviewWidth();
+			int height = preview.getPreviewHeight();
+			byte[][] images = new byte[FRAME_COUNT][];
+			for (int i = 0; i < FRAME_COUNT; i++) {
+				images[i] = createFrame(width, height, i);
+			}
+
+			long period = 1000000000L / frameRate;
+			long next = System.nanoTime();
+			int frame = 0;
+			while (running) {
+				preview.onPreviewFrame(images[frame % FRAME_COUNT], null);
+				frame++;
+				frames++;
+
+				next += period;
+				if (!waitUntil(next, period)) {
+					framesLate++;
+					next = System.nanoTime();
+				}
+			}
+		}
+	};
+
+	// A gradient with a bright bar moving across it, so that the change detection and the tiles have work to do
+	private static byte[] createFrame(int width, int height, int index) {
+		byte[] data = new byte[width * height * 3 / 2];
+		int bar = index * width / FRAME_COUNT;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				data[y * width + x] = (byte) ((Math.abs(x - bar) < width / 16) ? 235 : (x + y) * 200 / (width + height) + 16);
+			}
+		}
+		for (int i = width * height; i < data.length; i += 2) {
+			data[i] = (byte) (128 + (i / width) % 32); // V
+			data[i + 1] = (byte) (128 - (i % width) / 16); // U
+		}
+		return data;
+	}
+
+	// Sleeps for a short period and records how late it wakes up, a stopped world shows up here
+	private final Runnable hiccupTask = new Runnable() {
+		@Override
+		public void run() {
+			while (running) {
+				long start = System.nanoTime();
+				try {
+					Thread.sleep(HICCUP_PERIOD / 1000000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				hiccups.record(System.nanoTime() - start - HICCUP_PERIOD);
+			}
+		}
+	};
+
+	// Drains the video datagrams so that the sends do not fail
+	private final Runnable sinkTask = new Runnable() {
+		@Override
+		public void run() {
+			// The socket of this run, a restart creates a new one
+			DatagramSocket socket = sinkSocket;
+			byte[] buffer = new byte[VideoPacket.DATAGRAM_SIZE];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			while (!socket.isClosed()) {
+				try {
+					packet.setLength(buffer.length);
+					socket.receive(packet);
+					sinkPackets++;
+				} catch (Exception e) {
+					// closed
+				}
+			}
+		}
+	};
+
+	/** Formats the results since the start, latencies in microseconds. */
+	public String format() {
+		double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-3);
+		long allocCount = Debug.getGlobalAllocCount() - startAllocCount;
+		long allocSize = Debug.getGlobalAllocSize() - startAllocSize;
+		int gcCount = Debug.getGlobalGcInvocationCount() - startGcCount;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ENGLISH, "soak %d:%02d:%02d%n", (int) seconds / 3600, (int) seconds / 60 % 60, (int) seconds % 60));
+		sb.append(String.format(Locale.ENGLISH, "%-12s %8.1f/s of %d, %d late%n", "imu", imuTicks / seconds, imuRate, imuLate));
+		sb.append(String.format(Locale.ENGLISH, "%-12s %8.1f/s of %d, %d late%n", "frames", frames / seconds, frameRate, framesLate));
+		sb.append(String.format(Locale.ENGLISH, "%-12s %8.1f/s%n", "sink packets", sinkPackets / seconds));
+		sb.append(String.format(Locale.ENGLISH, "%-12s %8.1f kB/s %.0f obj/s%n", "alloc", allocSize / seconds / 1024, allocCount / seconds));
+		sb.append(String.format(Locale.ENGLISH, "%-12s %8d %.1f/min%n", "gc", gcCount, gcCount * 60 / seconds));
+		sb.append(String.format(Locale.ENGLISH, "%-12s p50 %d p99 %d p99.9 %d max %d%n", "hiccup us", hiccups.getValueAtPercentile(50) / 1000,
+				hiccups.getValueAtPercentile(99) / 1000, hiccups.getValueAtPercentile(99.9) / 1000, hiccups.getMax() / 1000));
+		sb.append(PipelineStats.format());
+		return sb.toString();
+	}
+}
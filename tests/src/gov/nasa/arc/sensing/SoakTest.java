@@ -0,0 +1,52 @@
+package gov.nasa.arc.sensing;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+/**
+ * Runs the {@link SoakHarness} in the app's process for a fixed time, logs its report and fails if the pipeline stopped
+ * moving. The duration in seconds is the "duration" argument of the runner, DEFAULT_DURATION if missing:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class gov.nasa.arc.sensing.SoakTest -e duration 3600 \
+ *     gov.nasa.arc.sensing.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+public class SoakTest extends InstrumentationTestCase {
+	private static final String TAG = "SoakTest";
+
+	public static final int DEFAULT_DURATION = 60; // s
+
+	public void testSoak() throws Exception {
+		final Context context = getInstrumentation().getTargetContext();
+		final SoakHarness[] harness = new SoakHarness[1];
+		// The harness creates a view
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				harness[0] = new SoakHarness(context);
+			}
+		});
+
+		harness[0].start();
+		try {
+			Thread.sleep(getDuration() * 1000L);
+		} finally {
+			harness[0].stop();
+		}
+		Log.i(TAG, harness[0].format());
+
+		assertTrue("no fusion step ran", PipelineStats.getCounter(PipelineStats.FUSION_TICKS) > 0);
+		assertTrue("no video packet was sent", PipelineStats.getCounter(PipelineStats.VIDEO_PACKETS) > 0);
+		assertEquals("video send errors", 0, PipelineStats.getCounter(PipelineStats.SEND_ERRORS));
+	}
+
+	private int getDuration() {
+		Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+		String duration = (arguments != null) ? arguments.getString("duration") : null;
+		return (duration != null) ? Integer.parseInt(duration) : DEFAULT_DURATION;
+	}
+}
@@ -0,0 +1,114 @@
+package gov.nasa.arc.sensing;
+
+import java.util.Locale;
+
+/**
+ * Checks {@link OrientationHistory} on a desktop JVM from the tools directory (ant check), exits with status 1 if a check
+ * fails.
+ *
+ * Besides the lookups at and between entries, it replays the timing of the video stamping: the fusion task adds an entry
+ * every 30 ms stamped with its newest sample, and a frame reaches the preview callback one frame period after its
+ * capture. The capture time of such a frame must fall between two entries and get an interpolated orientation, not the
+ * newest one clamped.
+ */
+public class OrientationHistoryCheck {
+
+	private static final long MS = 1000000L;
+	private static final float EPSILON = 1e-5f;
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		checkLookups();
+		checkWrapAround();
+		checkReplaceNewest();
+		checkCaptureTime();
+
+		System.out.println(failures == 0 ? "PASS" : failures + " checks FAILED");
+		if (failures != 0)
+			System.exit(1);
+	}
+
+	static void checkLookups() {
+		OrientationHistory history = new OrientationHistory(4);
+		float[] out = new float[3];
+		check("empty history", !history.interpolate(0, out));
+
+		for (int i = 0; i < 6; i++) {
+			history.add(i * 10 * MS, new float[] { 0.1f * i, -0.1f * i, 0.0f });
+		}
+		check("capacity kept", history.size() == 4);
+		check("before oldest clamps", history.interpolate(0, out) && near(out[0], 0.2f));
+		check("after newest clamps", history.interpolate(100 * MS, out) && near(out[0], 0.5f));
+		check("on an entry", history.interpolate(30 * MS, out) && near(out[0], 0.3f) && near(out[1], -0.3f));
+		history.interpolate(42 * MS, out);
+		check("interior interpolates", near(out[0], 0.42f) && near(out[1], -0.42f) && near(out[2], 0.0f));
+	}
+
+	static void checkWrapAround() {
+		OrientationHistory history = new OrientationHistory();
+		float[] out = new float[3];
+		float from = (float) Math.PI - 0.1f;
+		history.add(0, new float[] { from, 0.0f, 0.0f });
+		history.add(10 * MS, new float[] { -from, 0.0f, 0.0f });
+		history.interpolate(5 * MS, out);
+		check("shortest arc through +-pi", Math.abs(out[0]) > Math.PI - 0.01);
+	}
+
+	static void checkReplaceNewest() {
+		OrientationHistory history = new OrientationHistory();
+		float[] out = new float[3];
+		history.add(10 * MS, new float[] { 0.1f, 0.0f, 0.0f });
+		history.add(20 * MS, new float[] { 0.2f, 0.0f, 0.0f });
+		history.add(20 * MS, new float[] { 0.3f, 0.0f, 0.0f });
+		history.add(19 * MS, new float[] { 0.4f, 0.0f, 0.0f });
+		check("older entry replaces the newest", history.size() == 2 && history.interpolate(20 * MS, out) && near(out[0], 0.4f));
+		history.interpolate(15 * MS, out);
+		check("replaced entry interpolates", near(out[0], 0.25f));
+	}
+
+	/**
+	 * Samples every 5 ms whose orientation is a ramp of 0.5 rad/s, delivered 2 ms late, fused every 30 ms. Each frame
+	 * arrives at a fusion tick and was captured {@link CameraPreview#DEFAULT_CAPTURE_LATENCY} earlier.
+	 */
+	static void checkCaptureTime() {
+		OrientationHistory history = new OrientationHistory();
+		float[] out = new float[3];
+		long latency = 33 * MS; // CameraPreview.DEFAULT_CAPTURE_LATENCY, which needs the Android API to load
+		long newestSample = 0;
+		int interior = 0, exact = 0, frames = 0;
+		for (long now = 0; now <= 3000 * MS; now += MS) {
+			if (now % (5 * MS) == 2 * MS)
+				newestSample = now - 2 * MS;
+			if (now % (30 * MS) != 0 || now == 0)
+				continue;
+			history.add(newestSample, new float[] { ramp(newestSample), 0.0f, 0.0f });
+			if (now < 200 * MS)
+				continue;
+
+			frames++;
+			long captureTime = now - latency;
+			history.interpolate(captureTime, out);
+			if (out[0] < ramp(newestSample) - EPSILON)
+				interior++;
+			if (near(out[0], ramp(captureTime)))
+				exact++;
+		}
+		check(String.format(Locale.ENGLISH, "capture time interpolates (%d of %d frames)", interior, frames), frames > 0 && interior == frames);
+		check("capture orientation matches the ramp", exact == frames);
+	}
+
+	private static float ramp(long time) {
+		return 0.5f * time / (1000 * MS);
+	}
+
+	private static boolean near(float a, float b) {
+		return Math.abs(a - b) < EPSILON;
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + name);
+		if (!ok)
+			failures++;
+	}
+}
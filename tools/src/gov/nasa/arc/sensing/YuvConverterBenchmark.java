@@ -0,0 +1,241 @@
+package gov.nasa.arc.sensing;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks {@link YuvConverter} against a golden image and against the float BT.601 conversion it replaced, and times
+ * both. Runs on a desktop JVM from the tools directory (ant benchmark), the converter does not use the Android API.
+ *
+ * The golden image is a committed 64x48 NV21 frame, golden/nv21_64x48.yuv, whose chroma blocks step through U and V from
+ * 0 to 255, and its expected output golden/nv21_64x48.argb (big endian ARGB ints), the float conversion rounded to
+ * nearest. Every channel of every pixel must be within {@link #TOLERANCE} of it: the fixed point path rounds the chroma
+ * term before adding the luma, which can move a result that lies on .5 by one.
+ *
+ * The sweep frame is 512x512 so that its 2x2 blocks cover every one of the 65536 U/V pairs once, with random luma. It is
+ * held to the same tolerance against the float conversion, and the table, the direct and the parallel paths must agree
+ * exactly with each other.
+ *
+ * Usage: YuvConverterBenchmark [width=1280] [height=720] [iterations=200]
+ */
+public class YuvConverterBenchmark {
+
+	public static final int TOLERANCE = 1;
+
+	private static final String GOLDEN_DIR = "golden";
+	private static final int GOLDEN_WIDTH = 64;
+	private static final int GOLDEN_HEIGHT = 48;
+	private static final int SWEEP_SIZE = 512;
+
+	public static void main(String[] args) throws IOException {
+		int width = (args.length > 0) ? Integer.parseInt(args[0]) : 1280;
+		int height = (args.length > 1) ? Integer.parseInt(args[1]) : 720;
+		int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+
+		boolean passed = checkGolden();
+		passed &= checkSweep();
+
+		byte[] frame = randomFrame(width, height, new Random(2));
+		int[] pixels = new int[width * height];
+		System.out.println(String.format(Locale.ENGLISH, "%dx%d, %d iterations, %d cores", width, height, iterations, Runtime.getRuntime().availableProcessors()));
+		time("legacy float", frame, width, height, pixels, iterations, 0);
+		time("reference float", frame, width, height, pixels, iterations, 1);
+		time("fixed point", frame, width, height, pixels, iterations, 2);
+		time("fixed point tables", frame, width, height, pixels, iterations, 3);
+		time("convert", frame, width, height, pixels, iterations, 4);
+
+		if (!passed)
+			System.exit(1);
+	}
+
+	/** Compares every path of the converter with the committed expected output of the golden frame. */
+	static boolean checkGolden() throws IOException {
+		int width = GOLDEN_WIDTH, height = GOLDEN_HEIGHT;
+		String name = "nv21_" + width + "x" + height;
+		byte[] frame = readFile(new File(GOLDEN_DIR, name + ".yuv"), width * height * 3 / 2);
+		byte[] argb = readFile(new File(GOLDEN_DIR, name + ".argb"), width * height * 4);
+		int[] expected = new int[width * height];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = ((argb[4 * i] & 0xff) << 24) | ((argb[4 * i + 1] & 0xff) << 16) | ((argb[4 * i + 2] & 0xff) << 8) | (argb[4 * i + 3] & 0xff);
+		}
+		return compare("golden", frame, width, height, expected);
+	}
+
+	/** Compares every path of the converter with the float reference on a frame holding every U/V pair. */
+	static boolean checkSweep() {
+		int width = SWEEP_SIZE, height = SWEEP_SIZE;
+		byte[] frame = new byte[width * height * 3 / 2];
+		new Random(1).nextBytes(frame);
+		// One 2x2 block per U/V pair
+		int uvIndex = width * height;
+		for (int u = 0; u < 256; u++) {
+			for (int v = 0; v < 256; v++) {
+				frame[uvIndex++] = (byte) v;
+				frame[uvIndex++] = (byte) u;
+			}
+		}
+
+		int[] expected = new int[width * height];
+		convertReference(frame, width, height, expected);
+		return compare("sweep", frame, width, height, expected);
+	}
+
+	private static boolean compare(String name, byte[] frame, int width, int height, int[] expected) {
+		int[] tables = new int[width * height];
+		YuvConverter.convertRows(frame, width, height, tables, 0, height, true);
+		int[] direct = new int[width * height];
+		YuvConverter.convertRows(frame, width, height, direct, 0, height, false);
+		int[] parallel = new int[width * height];
+		YuvConverter.convertParallel(frame, width, height, parallel, true, 4);
+
+		int maxError = 0, mismatches = 0, firstMismatch = -1;
+		for (int i = 0; i < expected.length; i++) {
+			int error = maxChannelError(expected[i], tables[i]);
+			maxError = Math.max(maxError, error);
+			if (error > TOLERANCE || tables[i] != direct[i] || tables[i] != parallel[i]) {
+				if (firstMismatch < 0)
+					firstMismatch = i;
+				mismatches++;
+			}
+		}
+
+		boolean passed = mismatches == 0;
+		System.out.println(String.format(Locale.ENGLISH, "%s %dx%d: max error %d (tolerance %d), %d mismatching pixels %s", name, width, height,
+				maxError, TOLERANCE, mismatches, passed ? "PASS" : "FAIL"));
+		if (!passed)
+			System.out.println(String.format(Locale.ENGLISH, "first mismatch at %d,%d: expected %08x, tables %08x, direct %08x, parallel %08x", firstMismatch
+					% width, firstMismatch / width, expected[firstMismatch], tables[firstMismatch], direct[firstMismatch], parallel[firstMismatch]));
+		return passed;
+	}
+
+	private static void time(String name, byte[] frame, int width, int height, int[] pixels, int iterations, int path) {
+		// Warm up the JIT, then time
+		for (int i = 0; i < 10; i++) {
+			run(path, frame, width, height, pixels);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			run(path, frame, width, height, pixels);
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / iterations;
+		System.out.println(String.format(Locale.ENGLISH, "%-20s %7.2f ms/frame, %6.1f Mpixel/s", name, millis, width * height / millis / 1000));
+	}
+
+	private static void run(int path, byte[] frame, int width, int height, int[] pixels) {
+		switch (path) {
+		case 0:
+			convertLegacy(frame, width, height);
+			break;
+		case 1:
+			convertReference(frame, width, height, pixels);
+			break;
+		case 2:
+			YuvConverter.convertRows(frame, width, height, pixels, 0, height, false);
+			break;
+		case 3:
+			YuvConverter.convertRows(frame, width, height, pixels, 0, height, true);
+			break;
+		default:
+			// The path CameraPreview uses
+			YuvConverter.convert(frame, width, height, pixels, false);
+			break;
+		}
+	}
+
+	private static byte[] readFile(File file, int size) throws IOException {
+		byte[] data = new byte[size];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+			if (in.read() != -1)
+				throw new IOException(file + " is longer than " + size + " bytes");
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static byte[] randomFrame(int width, int height, Random random) {
+		byte[] frame = new byte[width * height * 3 / 2];
+		random.nextBytes(frame);
+		return frame;
+	}
+
+	private static int maxChannelError(int a, int b) {
+		int error = 0;
+		for (int shift = 0; shift <= 16; shift += 8) {
+			error = Math.max(error, Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)));
+		}
+		return error;
+	}
+
+	/**
+	 * The float BT.601 conversion of the old CameraPreview routine, with its coefficient truncation, chroma order and
+	 * channel order fixed. Rounded to nearest.
+	 */
+	static void convertReference(byte[] data, int width, int height, int[] pixels) {
+		int frameSize = width * height;
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				int uvIndex = frameSize + (row >> 1) * width + (col & ~1);
+				float y = data[row * width + col] & 0xff;
+				float v = (data[uvIndex] & 0xff) - 128;
+				float u = (data[uvIndex + 1] & 0xff) - 128;
+				int r = clamp(Math.round(y + 1.402f * v));
+				int g = clamp(Math.round(y - 0.344136f * u - 0.714136f * v));
+				int b = clamp(Math.round(y + 1.772f * u));
+				pixels[row * width + col] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	private static int clamp(int c) {
+		return c > 255 ? 255 : c < 0 ? 0 : c;
+	}
+
+	// The old CameraPreview routine as it was, only timed: its output is wrong
+	private static int[] convertLegacy(byte[] data, int width, int height) {
+		int size = width * height;
+		int offset = size;
+		int[] pixels = new int[size];
+		int u, v, y1, y2, y3, y4;
+
+		for (int i = 0, k = 0; i < size; i += 2, k += 2) {
+			y1 = data[i] & 0xff;
+			y2 = data[i + 1] & 0xff;
+			y3 = data[width + i] & 0xff;
+			y4 = data[width + i + 1] & 0xff;
+
+			u = data[offset + k] & 0xff;
+			v = data[offset + k + 1] & 0xff;
+			u = u - 128;
+			v = v - 128;
+
+			pixels[i] = convertLegacyPixel(y1, u, v);
+			pixels[i + 1] = convertLegacyPixel(y2, u, v);
+			pixels[width + i] = convertLegacyPixel(y3, u, v);
+			pixels[width + i + 1] = convertLegacyPixel(y4, u, v);
+
+			if (i != 0 && (i + 2) % width == 0)
+				i += width;
+		}
+
+		return pixels;
+	}
+
+	private static int convertLegacyPixel(int y, int u, int v) {
+		int r, g, b;
+
+		r = y + (int) 1.402f * v;
+		g = y - (int) (0.344f * u + 0.714f * v);
+		b = y + (int) 1.772f * u;
+		r = r > 255 ? 255 : r < 0 ? 0 : r;
+		g = g > 255 ? 255 : g < 0 ? 0 : g;
+		b = b > 255 ? 255 : b < 0 ? 0 : b;
+		return 0xff000000 | (b << 16) | (g << 8) | r;
+	}
+}